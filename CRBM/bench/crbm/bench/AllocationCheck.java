@@ -0,0 +1,54 @@
+package crbm.bench;
+
+import crbm.CRBM;
+import crbm.Main;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that steady-state CRBM training allocates nothing per sample. Two
+ * trainings that differ only in the number of epochs allocate the same
+ * per-call setup, so their difference divided by the extra samples is the
+ * allocation per sample.
+ *
+ * Run from the CRBM directory.
+ */
+public class AllocationCheck {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+
+    private static final int K = 15;
+    private static final int filterEdgeLength = 5;
+    private static final int dataEdgeLength = 32;
+    private static final int batchSize = 10;
+    private static final float learningRate = 0.01f;
+
+    // println of the epoch error allocates a little per epoch
+    private static final float maxBytesPerSample = 1.0f;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        float[][] data = Main.dataSetToArray(Main.loadData(dataPath));
+        CRBM crbm = new CRBM(K, filterEdgeLength, 0);
+
+        // warm up so that the kernels are compiled
+        crbm.train(data, dataEdgeLength, 2, batchSize, learningRate, null);
+
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        crbm.train(data, dataEdgeLength, 1, batchSize, learningRate, null);
+        long oneEpoch = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+        start = threadBean.getThreadAllocatedBytes(threadId);
+        crbm.train(data, dataEdgeLength, 3, batchSize, learningRate, null);
+        long threeEpochs = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+        float bytesPerSample = (float) (threeEpochs - oneEpoch) / (2 * data.length);
+        System.out.println("Setup: " + oneEpoch + " bytes, per sample: " + bytesPerSample + " bytes");
+        if (bytesPerSample > maxBytesPerSample) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,139 @@
+package crbm.bench;
+
+import crbm.Convolution;
+import crbm.Main;
+import java.util.Random;
+import org.jblas.FloatMatrix;
+
+/**
+ * Compares the im2col convolution against the reference loops on the MNIST
+ * sample and reports the speedup, then the FFTs against im2col on the sample
+ * and on large random images with a large filter.
+ *
+ * Run from the CRBM directory.
+ */
+public class ConvolutionCheck {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+
+    private static final int K = 15;
+    private static final int filterEdgeLength = 5;
+    private static final int dataEdgeLength = 32;
+    private static final int runs = 5;
+
+    private static final int largeFilterEdgeLength = 13;
+    private static final int largeDataEdgeLength = 256;
+    private static final int largeImages = 4;
+
+    public static void main(String[] args) {
+        float[][] data = Main.dataSetToArray(Main.loadData(dataPath));
+
+        Random random = new Random(0);
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        float[][] filters = new float[K][filterDimensions];
+        FloatMatrix W = new FloatMatrix(filterDimensions, K);
+        for (int k = 0; k < K; k++) {
+            for (int i = 0; i < filterDimensions; i++) {
+                filters[k][i] = (float) (random.nextDouble() - 0.5);
+                W.put(i, k, filters[k][i]);
+            }
+        }
+
+        // correctness
+        float maxError = 0;
+        for (float[] image : data) {
+            float[][] fast = Convolution.toMaps(Convolution.im2col(image, dataEdgeLength, filterEdgeLength).mmul(W));
+            for (int k = 0; k < K; k++) {
+                float[] slow = Convolution.filter(image, filters[k], dataEdgeLength, filterEdgeLength);
+                maxError = Math.max(maxError, maxDifference(slow, fast[k]));
+            }
+        }
+        System.out.println("Single channel max error: " + maxError);
+
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        float[][] channels = Convolution.toMaps(Convolution.im2col(data[0], dataEdgeLength, filterEdgeLength).mmul(W));
+        float[][] fastChannels = Convolution.toMaps(Convolution.im2col(Convolution.average(channels), rEdgeLength, filterEdgeLength).mmul(W));
+        maxError = 0;
+        for (int k = 0; k < K; k++) {
+            float[] slow = Convolution.filter(channels, filters[k], rEdgeLength, filterEdgeLength, true);
+            maxError = Math.max(maxError, maxDifference(slow, fastChannels[k]));
+        }
+        System.out.println("Multi channel max error: " + maxError);
+
+        // speed
+        long loopTime = Long.MAX_VALUE;
+        long gemmTime = Long.MAX_VALUE;
+        float sink = 0;
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime();
+            for (float[] image : data) {
+                for (int k = 0; k < K; k++) {
+                    sink += Convolution.filter(image, filters[k], dataEdgeLength, filterEdgeLength)[0];
+                }
+            }
+            loopTime = Math.min(loopTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (float[] image : data) {
+                sink += Convolution.im2col(image, dataEdgeLength, filterEdgeLength).mmul(W).data[0];
+            }
+            gemmTime = Math.min(gemmTime, System.nanoTime() - start);
+        }
+
+        System.out.println("Images: " + data.length + ", K: " + K + ", filter: " + filterEdgeLength + ", data: " + dataEdgeLength);
+        System.out.println("Loop:   " + loopTime / 1000000 + " ms");
+        System.out.println("im2col: " + gemmTime / 1000000 + " ms");
+        System.out.println("Speedup: " + (float) loopTime / gemmTime + " (" + sink + ")");
+
+        // FFTs
+        maxError = 0;
+        for (float[] image : data) {
+            FloatMatrix fast = Convolution.im2col(image, dataEdgeLength, filterEdgeLength).mmul(W);
+            maxError = Math.max(maxError, maxDifference(fast.data, Convolution.fft(image, 1, 1, dataEdgeLength, filterEdgeLength, W).data));
+        }
+        System.out.println("FFT max error: " + maxError);
+
+        long fftTime = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime();
+            for (float[] image : data) {
+                sink += Convolution.fft(image, 1, 1, dataEdgeLength, filterEdgeLength, W).data[0];
+            }
+            fftTime = Math.min(fftTime, System.nanoTime() - start);
+        }
+        System.out.println("FFT:    " + fftTime / 1000000 + " ms, speedup over im2col: " + (float) gemmTime / fftTime);
+
+        float[] large = new float[largeImages * largeDataEdgeLength * largeDataEdgeLength];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = random.nextFloat();
+        }
+        FloatMatrix largeW = FloatMatrix.rand(largeFilterEdgeLength * largeFilterEdgeLength, K).subi(0.5f);
+        FloatMatrix fast = Convolution.im2col(large, largeImages, largeDataEdgeLength, largeFilterEdgeLength).mmul(largeW);
+        FloatMatrix fft = Convolution.fft(large, largeImages, 1, largeDataEdgeLength, largeFilterEdgeLength, largeW);
+        System.out.println("Images: " + largeImages + ", K: " + K + ", filter: " + largeFilterEdgeLength + ", data: " + largeDataEdgeLength);
+        System.out.println("FFT max error: " + maxDifference(fast.data, fft.data));
+
+        gemmTime = Long.MAX_VALUE;
+        fftTime = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime();
+            sink += Convolution.im2col(large, largeImages, largeDataEdgeLength, largeFilterEdgeLength).mmul(largeW).data[0];
+            gemmTime = Math.min(gemmTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sink += Convolution.fft(large, largeImages, 1, largeDataEdgeLength, largeFilterEdgeLength, largeW).data[0];
+            fftTime = Math.min(fftTime, System.nanoTime() - start);
+        }
+        System.out.println("im2col: " + gemmTime / 1000000 + " ms");
+        System.out.println("FFT:    " + fftTime / 1000000 + " ms");
+        System.out.println("Speedup: " + (float) gemmTime / fftTime + " (" + sink + ")");
+    }
+
+    static float maxDifference(float[] a, float[] b) {
+        float max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,68 @@
+package crbm.bench;
+
+import crbm.rbm.ForkBlas;
+import java.util.Random;
+import org.jblas.FloatMatrix;
+
+/**
+ * Compares ForkBlas.pgemm against mmul with the transposes materialized, for
+ * every combination of the transpose flags, on odd shapes that leave partial
+ * blocks and an inner dimension of several chunks with a partial last one.
+ * The cache size is set small so that the blocks and chunks stay small.
+ */
+public class ForkBlasCheck {
+
+    private static final int[][] shapes = {
+            // m, n, k: a single native call, then split into blocks
+            {7, 5, 3},
+            {301, 157, 1000},
+            {1001, 3, 517},
+            {2, 999, 773}
+    };
+    private static final int threads = 4;
+    // relative to the largest entry of the result
+    private static final float maxError = 1e-5f;
+
+    public static void main(String[] args) {
+        // read when ForkBlas is initialized: 64 x 64 blocks and chunks of 256
+        System.setProperty("crbm.cacheSize", Integer.toString(64 * 1024));
+        ForkBlas forkBlas = new ForkBlas(threads);
+
+        Random random = new Random(0);
+        boolean failed = false;
+        for (int[] shape : shapes) {
+            int m = shape[0];
+            int n = shape[1];
+            int k = shape[2];
+            for (int flags = 0; flags < 4; flags++) {
+                boolean transposeA = (flags & 1) != 0;
+                boolean transposeB = (flags & 2) != 0;
+                FloatMatrix a = random(random, transposeA ? k : m, transposeA ? m : k);
+                FloatMatrix b = random(random, transposeB ? n : k, transposeB ? k : n);
+
+                FloatMatrix expected = (transposeA ? a.transpose() : a).mmul(transposeB ? b.transpose() : b);
+                FloatMatrix result = new FloatMatrix(m, n);
+                forkBlas.pgemm(transposeA, transposeB, a, b, result);
+
+                float error = expected.sub(result).normmax() / Math.max(expected.normmax(), Float.MIN_NORMAL);
+                boolean ok = error <= maxError;
+                failed |= !ok;
+                System.out.println(m + " x " + n + " x " + k + (transposeA ? " aT" : " a") + (transposeB ? " bT" : " b")
+                        + ": max error " + error + (ok ? " OK" : " FAILED"));
+            }
+        }
+        forkBlas.shutdown();
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static FloatMatrix random(Random random, int rows, int columns) {
+        FloatMatrix result = new FloatMatrix(rows, columns);
+        for (int i = 0; i < result.data.length; i++) {
+            result.data[i] = random.nextFloat() - 0.5f;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package crbm.bench;
+
+import crbm.DataSet;
+import crbm.IdxDataSet;
+import crbm.Main;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes the MNIST sample as IDX files, checks that Main.loadIdx gives the
+ * same data and labels as loading the PNGs, and times loading random IDX
+ * files of the size of the MNIST training set.
+ *
+ * Run from the CRBM directory.
+ */
+public class IdxCheck {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+
+    private static final int trainingImages = 60000;
+    private static final int edgeLength = 28;
+    private static final int runs = 5;
+
+    public static void main(String[] args) throws IOException {
+        File directory = File.createTempFile("idx", "");
+        directory.delete();
+        directory.mkdir();
+        File images = new File(directory, "sample-images-idx3-ubyte");
+        File labels = new File(directory, "sample-labels-idx1-ubyte");
+        try {
+            File[] files = new File(dataPath).listFiles();
+            Arrays.sort(files);
+            byte[][] pixels = new byte[files.length][];
+            byte[] digits = new byte[files.length];
+            for (int i = 0; i < files.length; i++) {
+                // the gray values as getRGB sees them, like the PNG loader,
+                // encoded like MNIST with ink as 255 on a background of 0
+                BufferedImage image = ImageIO.read(files[i]);
+                int[] rgb = image.getRGB(0, 0, edgeLength, edgeLength, null, 0, edgeLength);
+                pixels[i] = new byte[rgb.length];
+                for (int p = 0; p < rgb.length; p++) {
+                    pixels[i][p] = (byte) (255 - (rgb[p] & 0xFF));
+                }
+                digits[i] = Byte.parseByte(files[i].getName().split("_")[0]);
+            }
+            write(images, labels, pixels, digits);
+
+            DataSet[] expected = Main.loadImages(files, 1);
+            DataSet[] actual = Main.loadIdx(images);
+            float maxDifference = 0.0f;
+            boolean labelsMatch = actual.length == expected.length;
+            for (int i = 0; i < expected.length && labelsMatch; i++) {
+                labelsMatch = expected[i].getLabel().equals(actual[i].getLabel());
+                float[] e = expected[i].getData();
+                float[] a = actual[i].getData();
+                for (int p = 0; p < e.length; p++) {
+                    maxDifference = Math.max(maxDifference, Math.abs(e[p] - a[p]));
+                }
+            }
+            System.out.println(actual.length + " images, labels match: " + labelsMatch + ", max difference: " + maxDifference);
+            if (!labelsMatch || maxDifference > 1e-6f) {
+                System.out.println("FAILED");
+                System.exit(1);
+            }
+
+            Random random = new Random(0);
+            pixels = new byte[trainingImages][edgeLength * edgeLength];
+            digits = new byte[trainingImages];
+            for (int i = 0; i < trainingImages; i++) {
+                random.nextBytes(pixels[i]);
+                digits[i] = (byte) random.nextInt(10);
+            }
+            write(images, labels, pixels, digits);
+
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                IdxDataSet idx = IdxDataSet.open(images, labels, 2, false, false, 0.0f, 1.0f);
+                long open = System.nanoTime() - start;
+                DataSet[] data = Main.loadIdx(images);
+                long load = System.nanoTime() - start;
+                System.out.println("Open " + idx.size() + " images: " + open / 1e6f + " ms, load all: " + load / 1e6f + " ms ("
+                        + data.length + " x " + data[0].getData().length + " floats)");
+            }
+            System.out.println("OK");
+        } finally {
+            images.delete();
+            labels.delete();
+            directory.delete();
+        }
+    }
+
+    private static void write(File images, File labels, byte[][] pixels, byte[] digits) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(images)))) {
+            out.writeInt(0x00000803);
+            out.writeInt(pixels.length);
+            out.writeInt(edgeLength);
+            out.writeInt(edgeLength);
+            for (byte[] image : pixels) {
+                out.write(image);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(labels)))) {
+            out.writeInt(0x00000801);
+            out.writeInt(digits.length);
+            out.write(digits);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package crbm.bench;
+
+import crbm.ImageScaler;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the array resampler of ImageScaler with the AWT paths it
+ * replaces, for every raster layout it reads directly and one it reads
+ * through getRGB: AREA with scale (SCALE_SMOOTH drawn on TYPE_INT_RGB) and
+ * NEAREST_NEIGHBOUR with getScaledImageNeirestNeighbour, as intensities and
+ * as RGB. The images with alpha are made translucent toward the bottom,
+ * which both paths draw over black; getScaledImageNeirestNeighbour drops
+ * alpha, so it gets the image composited over black first.
+ *
+ * Run from the CRBM directory.
+ */
+public class ImageScalingCheck {
+
+    // a 28x28 gray MNIST digit and a 128x96 color photo
+    private static final String[] paths = {"Data/MNIST_1000_Database/0_01.png", "Data/Test_10x5/apfelgruen_01.jpg"};
+    private static final int[] edgeLengths = {28, 20, 64};
+    private static final int[] types = {
+            BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_BYTE_INDEXED,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            // read with getRGB
+            BufferedImage.TYPE_INT_BGR
+    };
+    private static final String[] typeNames = {"BYTE_GRAY", "BYTE_INDEXED", "3BYTE_BGR", "4BYTE_ABGR", "INT_RGB", "INT_ARGB", "INT_BGR"};
+
+    // in [0, 1], the AWT path rounds its result to bytes, and translucent
+    // pixels also after premultiplying them by alpha
+    private static final float maxAreaError = 0.002f;
+    private static final float maxTranslucentAreaError = 1.5f / 255;
+    private static final float maxNearestError = 0.5f / 255;
+    // the bulk getRGB of the AWT path converts a few gray levels to sRGB one
+    // step off the ColorModel.getRGB that ImageScaler reads them with
+    private static final float maxGrayError = 1.01f / 255;
+
+    public static void main(String[] args) throws IOException {
+        boolean failed = false;
+        for (String path : paths) {
+            BufferedImage source = ImageIO.read(new File(path));
+            for (int t = 0; t < types.length; t++) {
+                BufferedImage image = convert(source, types[t]);
+                BufferedImage opaque = overBlack(image);
+                boolean gray = types[t] == BufferedImage.TYPE_BYTE_GRAY;
+                float maxArea = gray ? maxGrayError : image.getColorModel().hasAlpha() ? maxTranslucentAreaError : maxAreaError;
+                float maxNearest = gray ? maxGrayError : maxNearestError;
+                for (int edgeLength : edgeLengths) {
+                    ImageScaler scaler = new ImageScaler(image);
+
+                    float[] area = new float[edgeLength * edgeLength];
+                    scaler.scaleIntensity(edgeLength, ImageScaler.Method.AREA, area);
+                    float[] areaRGB = new float[3 * edgeLength * edgeLength];
+                    scaler.scaleRGB(edgeLength, ImageScaler.Method.AREA, areaRGB);
+                    BufferedImage smooth = scaler.scale(edgeLength);
+
+                    float[] nearest = new float[edgeLength * edgeLength];
+                    scaler.scaleIntensity(edgeLength, ImageScaler.Method.NEAREST_NEIGHBOUR, nearest);
+                    float[] nearestRGB = new float[3 * edgeLength * edgeLength];
+                    scaler.scaleRGB(edgeLength, ImageScaler.Method.NEAREST_NEIGHBOUR, nearestRGB);
+                    BufferedImage sampled = new ImageScaler().getScaledImageNeirestNeighbour(opaque, edgeLength, edgeLength);
+
+                    float areaError = Math.max(error(area, intensities(smooth)), error(areaRGB, rgb(smooth)));
+                    float nearestError = Math.max(error(nearest, intensities(sampled)), error(nearestRGB, rgb(sampled)));
+                    boolean ok = areaError <= maxArea && nearestError <= maxNearest;
+                    failed |= !ok;
+                    System.out.println(new File(path).getName() + " " + typeNames[t] + " -> " + edgeLength + ": AREA " + areaError
+                            + ", NEAREST_NEIGHBOUR " + nearestError + (ok ? " OK" : " FAILED"));
+                }
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The image drawn on a new one of type, with alpha falling from opaque
+     * at the top to a quarter at the bottom if the type has alpha.
+     */
+    private static BufferedImage convert(BufferedImage image, int type) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D g = result.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+
+        if (result.getColorModel().hasAlpha()) {
+            for (int y = 0; y < height; y++) {
+                int alpha = 255 - 192 * y / Math.max(1, height - 1);
+                for (int x = 0; x < width; x++) {
+                    result.setRGB(x, y, alpha << 24 | result.getRGB(x, y) & 0xFFFFFF);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The pixels of getRGB multiplied by their alpha, on TYPE_INT_RGB.
+     */
+    private static BufferedImage overBlack(BufferedImage image) {
+        int[] pixels = pixels(image);
+        for (int p = 0; p < pixels.length; p++) {
+            int alpha = pixels[p] >>> 24;
+            int rgb = 0;
+            for (int shift = 0; shift < 24; shift += 8) {
+                rgb |= Math.round(((pixels[p] >> shift) & 0xFF) * alpha / 255.0f) << shift;
+            }
+            pixels[p] = rgb;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        result.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        return result;
+    }
+
+    private static float[] intensities(BufferedImage image) {
+        int[] pixels = pixels(image);
+        float[] result = new float[pixels.length];
+        for (int p = 0; p < pixels.length; p++) {
+            int argb = pixels[p];
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            result[p] = Math.max(0.0f, Math.min(1.0f, (float) (0.299 * r + 0.587 * g + 0.114 * b) / 255.0f));
+        }
+        return result;
+    }
+
+    private static float[] rgb(BufferedImage image) {
+        int[] pixels = pixels(image);
+        float[] result = new float[3 * pixels.length];
+        for (int p = 0; p < pixels.length; p++) {
+            result[3 * p] = ((pixels[p] >> 16) & 0xFF) / 255.0f;
+            result[3 * p + 1] = ((pixels[p] >> 8) & 0xFF) / 255.0f;
+            result[3 * p + 2] = (pixels[p] & 0xFF) / 255.0f;
+        }
+        return result;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static float error(float[] actual, float[] expected) {
+        float result = 0.0f;
+        for (int i = 0; i < expected.length; i++) {
+            result = Math.max(result, Math.abs(actual[i] - expected[i]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+package crbm.bench;
+
+import crbm.CodeIndex;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Recall and latency of CodeIndex against a brute-force scan, for increasing
+ * numbers of probed lists, in the heap and memory-mapped after a save.
+ *
+ * The codes are drawn around random centers in [0, 1], like sigmoid codes
+ * of similar images, and the queries from the same distribution.
+ *
+ * Usage: IndexRecall [codes] [dimension] [k]
+ */
+public class IndexRecall {
+
+    private static final int queries = 1000;
+    private static final int centers = 1000;
+    private static final float spread = 0.3f;
+    private static final int sampleSize = 20000;
+    private static final int iterations = 10;
+    private static final int[] probes = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Random random = new Random(0);
+        float[][] means = new float[centers][dimension];
+        for (float[] mean : means) {
+            for (int d = 0; d < dimension; d++) {
+                mean[d] = random.nextFloat();
+            }
+        }
+        float[][] codes = codes(random, means, count);
+        float[][] queryCodes = codes(random, means, queries);
+
+        long start = System.nanoTime();
+        int[][] exact = new int[queries][];
+        for (int q = 0; q < queries; q++) {
+            exact[q] = bruteForce(codes, queryCodes[q], k);
+        }
+        System.out.println("Brute force: " + (System.nanoTime() - start) / 1e6f / queries + " ms/query");
+
+        start = System.nanoTime();
+        int lists = (int) Math.sqrt(count);
+        CodeIndex index = CodeIndex.train(Arrays.copyOf(codes, Math.min(sampleSize, count)), lists, iterations, 0);
+        System.out.println("Trained " + lists + " lists in " + (System.nanoTime() - start) / 1e9f + " s");
+
+        start = System.nanoTime();
+        index.add(codes);
+        System.out.println("Added " + count + " codes in " + (System.nanoTime() - start) / 1e9f + " s");
+
+        report("heap", index, queryCodes, exact, k);
+
+        File file = File.createTempFile("index", ".crbi");
+        try {
+            start = System.nanoTime();
+            index.save(file);
+            System.out.println("Saved " + file.length() / (1 << 20) + " MB in " + (System.nanoTime() - start) / 1e9f + " s");
+
+            start = System.nanoTime();
+            CodeIndex mapped = CodeIndex.open(file);
+            System.out.println("Opened in " + (System.nanoTime() - start) / 1e6f + " ms");
+
+            report("mapped", mapped, queryCodes, exact, k);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static float[][] codes(Random random, float[][] means, int count) {
+        float[][] result = new float[count][means[0].length];
+        for (float[] code : result) {
+            float[] mean = means[random.nextInt(means.length)];
+            for (int d = 0; d < code.length; d++) {
+                code[d] = Math.min(1.0f, Math.max(0.0f, mean[d] + spread * (float) random.nextGaussian()));
+            }
+        }
+        return result;
+    }
+
+    private static int[] bruteForce(float[][] codes, float[] query, int k) {
+        int[] ids = new int[k];
+        float[] distances = new float[k];
+        Arrays.fill(distances, Float.MAX_VALUE);
+        for (int i = 0; i < codes.length; i++) {
+            float sum = 0.0f;
+            for (int d = 0; d < query.length; d++) {
+                float difference = query[d] - codes[i][d];
+                sum += difference * difference;
+            }
+            if (sum < distances[k - 1]) {
+                int j = k - 1;
+                for (; j > 0 && distances[j - 1] > sum; j--) {
+                    ids[j] = ids[j - 1];
+                    distances[j] = distances[j - 1];
+                }
+                ids[j] = i;
+                distances[j] = sum;
+            }
+        }
+        return ids;
+    }
+
+    private static void report(String name, CodeIndex index, float[][] queryCodes, int[][] exact, int k) {
+        // warm up
+        for (int q = 0; q < queries; q++) {
+            index.search(queryCodes[q], k, probes[probes.length - 1]);
+        }
+
+        for (int p : probes) {
+            long[] latencies = new long[queries];
+            int found = 0;
+            for (int q = 0; q < queries; q++) {
+                long start = System.nanoTime();
+                int[] result = index.search(queryCodes[q], k, p);
+                latencies[q] = System.nanoTime() - start;
+
+                for (int id : result) {
+                    for (int e : exact[q]) {
+                        if (id == e) {
+                            found++;
+                            break;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            System.out.println(name + " probes " + p + ": recall@" + k + " " + (float) found / (queries * k)
+                    + ", mean " + total / 1e6f / queries + " ms, p99 " + latencies[queries * 99 / 100] / 1e6f + " ms");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package crbm.bench;
+
+import crbm.CRBM;
+import crbm.Main;
+
+/**
+ * Reconstruction error of the first CRBM layer over the epochs, trained
+ * image by image and in batches of the Trainer's size at the same learning
+ * rate and at the learning rate scaled with the batch size. The batches
+ * update W with the mean gradient, so at the same rate every image moves W
+ * by a batch size-th of its per-image step.
+ *
+ * Run from the CRBM directory.
+ */
+public class LearningRateCheck {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+
+    private static final int K = 15;
+    private static final int filterEdgeLength = 5;
+    private static final int dataEdgeLength = 32;
+    private static final int epochs = 30;
+    private static final int threads = 4;
+    private static final long seed = 1;
+    private static final float sparsityTarget = 0.05f;
+    private static final float sparsityCost = 10f;
+
+    // batch size, learning rate
+    private static final Object[][] configurations = {
+            {1, 0.01f},
+            {32, 0.01f},
+            {32, 0.32f}
+    };
+
+    public static void main(String[] args) {
+        float[][] data = Main.dataSetToArray(Main.loadData(dataPath));
+
+        for (Object[] configuration : configurations) {
+            int batchSize = (Integer) configuration[0];
+            float learningRate = (Float) configuration[1];
+
+            CRBM crbm = new CRBM(K, filterEdgeLength, seed);
+            crbm.setSparsity(sparsityTarget, sparsityCost);
+            final StringBuilder errors = new StringBuilder();
+            crbm.setEpochListener(new CRBM.EpochListener() {
+                @Override
+                public void epochFinished(int epoch, float error) {
+                    if (epoch % 5 == 0 || epoch == epochs - 1) {
+                        errors.append(String.format(" %d: %.3f", epoch + 1, error));
+                    }
+                }
+            });
+            crbm.train(data, dataEdgeLength, epochs, batchSize, threads, learningRate, null);
+            System.out.println("batch size " + batchSize + ", learning rate " + learningRate + ":" + errors);
+        }
+    }
+}
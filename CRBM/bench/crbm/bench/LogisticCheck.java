@@ -0,0 +1,108 @@
+package crbm.bench;
+
+import crbm.DefaultLogisticMatrixFunction;
+import crbm.FastLogisticMatrixFunction;
+import crbm.ILogistic;
+import crbm.LookupLogisticMatrixFunction;
+import java.util.Random;
+
+/**
+ * Checks the maximum absolute error of the logistic approximations against
+ * the default on a dense grid over [-100, 100] plus random inputs, without
+ * and with a bias, and the sum the biased version returns. The vector
+ * version is checked if it is on the classpath.
+ */
+public class LogisticCheck {
+
+    private static final float step = 1f / 1024;
+    private static final int randomCount = 1000000;
+    private static final float bias = -0.75f;
+
+    public static void main(String[] args) {
+        float[] input = input();
+        float[] exact = apply(new DefaultLogisticMatrixFunction(), input);
+        float[] shifted = input.clone();
+        for (int i = 0; i < shifted.length; i++) {
+            shifted[i] += bias;
+        }
+        float[] exactShifted = apply(new DefaultLogisticMatrixFunction(), shifted);
+
+        boolean failed = false;
+        failed |= !check("default biased", new DefaultLogisticMatrixFunction(), input, exactShifted, 0f);
+        failed |= !check("fast", new FastLogisticMatrixFunction(), input, exact, exactShifted, 1e-6f);
+        failed |= !check("lookup", new LookupLogisticMatrixFunction(), input, exact, exactShifted, 5e-6f);
+
+        try {
+            ILogistic vector = (ILogistic) Class.forName("crbm.VectorLogisticMatrixFunction").getDeclaredConstructor().newInstance();
+            failed |= !check("vector", vector, input, exact, exactShifted, 1e-6f);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.out.println("vector: skipped, not on the classpath");
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static float[] input() {
+        int gridCount = (int) (200 / step) + 1;
+        float[] result = new float[gridCount + randomCount + 4];
+
+        for (int i = 0; i < gridCount; i++) {
+            result[i] = -100 + i * step;
+        }
+        Random random = new Random(0);
+        for (int i = gridCount; i < gridCount + randomCount; i++) {
+            result[i] = (float) random.nextGaussian() * 8;
+        }
+        result[result.length - 4] = Float.MAX_VALUE;
+        result[result.length - 3] = -Float.MAX_VALUE;
+        result[result.length - 2] = Float.POSITIVE_INFINITY;
+        result[result.length - 1] = Float.NEGATIVE_INFINITY;
+        return result;
+    }
+
+    private static float[] apply(ILogistic logistic, float[] input) {
+        float[] result = input.clone();
+        logistic.function(result, 0, result.length);
+        return result;
+    }
+
+    private static boolean check(String name, ILogistic logistic, float[] input, float[] exact, float[] exactShifted, float bound) {
+        return check(name, apply(logistic, input), input, exact, bound)
+                & check(name + " biased", logistic, input, exactShifted, bound);
+    }
+
+    /**
+     * The biased version against the default on the shifted input, and its
+     * sum against the sum of its results in double precision.
+     */
+    private static boolean check(String name, ILogistic logistic, float[] input, float[] exactShifted, float bound) {
+        float[] result = input.clone();
+        float sum = logistic.function(result, 0, result.length, bias);
+        double expectedSum = 0;
+        for (float value : result) {
+            expectedSum += value;
+        }
+
+        boolean ok = Math.abs(sum - expectedSum) <= 1e-4 * expectedSum;
+        System.out.println(name + ": sum " + sum + ", expected " + (float) expectedSum + " " + (ok ? "OK" : "FAILED"));
+        return check(name, result, input, exactShifted, bound) & ok;
+    }
+
+    private static boolean check(String name, float[] result, float[] input, float[] exact, float bound) {
+        float maxError = 0;
+        float worst = 0;
+        for (int i = 0; i < input.length; i++) {
+            float error = Math.abs(result[i] - exact[i]);
+            if (!(error <= maxError)) {
+                maxError = error;
+                worst = input[i];
+            }
+        }
+
+        boolean ok = maxError <= bound;
+        System.out.println(name + ": max error " + maxError + " at " + worst + " (bound " + bound + ") " + (ok ? "OK" : "FAILED"));
+        return ok;
+    }
+}
@@ -0,0 +1,51 @@
+package crbm.bench;
+
+import crbm.CRBM;
+import crbm.Main;
+import java.util.Arrays;
+
+/**
+ * Scaling of the data-parallel CRBM training over 1, 2, 4, 8 and 16 threads.
+ * Also checks that two runs with the same seed and thread count end with
+ * identical filters.
+ *
+ * Run from the CRBM directory.
+ */
+public class ParallelTrainingBenchmark {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+
+    private static final int K = 15;
+    private static final int filterEdgeLength = 5;
+    private static final int dataEdgeLength = 32;
+    private static final int batchSize = 64;
+    private static final int epochs = 2;
+    private static final float learningRate = 0.01f;
+    private static final long seed = 42;
+
+    private static final int[] threadCounts = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) {
+        float[][] data = Main.dataSetToArray(Main.loadData(dataPath));
+
+        // warm up
+        new CRBM(K, filterEdgeLength, seed).train(data, dataEdgeLength, 1, batchSize, 1, learningRate, null);
+
+        long baseTime = 0;
+        for (int threads : threadCounts) {
+            CRBM first = new CRBM(K, filterEdgeLength, seed);
+            long start = System.nanoTime();
+            first.train(data, dataEdgeLength, epochs, batchSize, threads, learningRate, null);
+            long time = System.nanoTime() - start;
+            if (threads == 1) {
+                baseTime = time;
+            }
+
+            CRBM second = new CRBM(K, filterEdgeLength, seed);
+            second.train(data, dataEdgeLength, epochs, batchSize, threads, learningRate, null);
+            boolean deterministic = Arrays.deepEquals(first.getHidden(data[0], dataEdgeLength), second.getHidden(data[0], dataEdgeLength));
+
+            System.out.println("Threads: " + threads + ", time: " + time / 1000000 + " ms, speedup: " + (float) baseTime / time + ", deterministic: " + deterministic);
+        }
+    }
+}
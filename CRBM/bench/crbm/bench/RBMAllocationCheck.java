@@ -0,0 +1,59 @@
+package crbm.bench;
+
+import crbm.DefaultLogisticMatrixFunction;
+import crbm.rbm.RBMJBlasOpti;
+import crbm.rbm.StoppingCondition;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Checks that steady-state RBM training allocates nothing per epoch and
+ * reports the time per epoch. Like AllocationCheck, two trainings that differ
+ * only in the number of epochs allocate the same buffers, so their difference
+ * divided by the extra epochs is the allocation per epoch.
+ */
+public class RBMAllocationCheck {
+
+    private static final int images = 1000;
+    private static final int inputSize = 2000;
+    private static final int hiddenSize = 100;
+    private static final float learningRate = 0.01f;
+
+    // the fork/join tasks of the matrix products
+    private static final float maxBytesPerEpoch = 4096.0f;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        Random random = new Random(0);
+        float[][] data = new float[images][inputSize];
+        for (float[] image : data) {
+            for (int i = 0; i < inputSize; i++) {
+                image[i] = random.nextFloat();
+            }
+        }
+        RBMJBlasOpti rbm = new RBMJBlasOpti(inputSize, hiddenSize, learningRate, new DefaultLogisticMatrixFunction(), true, 0, null);
+
+        // warm up so that the kernels are compiled
+        rbm.train(data, new StoppingCondition(5), true, false);
+
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        rbm.train(data, new StoppingCondition(1), true, false);
+        long oneEpoch = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+        start = threadBean.getThreadAllocatedBytes(threadId);
+        long time = System.nanoTime();
+        rbm.train(data, new StoppingCondition(11), true, false);
+        time = System.nanoTime() - time;
+        long elevenEpochs = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+        float bytesPerEpoch = (float) (elevenEpochs - oneEpoch) / 10;
+        System.out.println("Setup: " + oneEpoch + " bytes, per epoch: " + bytesPerEpoch + " bytes, " + time / 11e6f + " ms");
+        if (bytesPerEpoch > maxBytesPerEpoch) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
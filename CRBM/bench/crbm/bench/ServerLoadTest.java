@@ -0,0 +1,151 @@
+package crbm.bench;
+
+import crbm.CRBM;
+import crbm.Cluster;
+import crbm.DataSet;
+import crbm.DefaultLogisticMatrixFunction;
+import crbm.FeatureStack;
+import crbm.InferenceServer;
+import crbm.LayerStack;
+import crbm.Main;
+import crbm.rbm.RBMJBlasOpti;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts an InferenceServer in process and fires the MNIST sample at it from
+ * several client threads. Reports p50 / p99 latency and throughput, once
+ * without batching (max batch size 1) and once with micro-batching.
+ *
+ * Without a checkpoint a randomly initialized stack with the shapes of
+ * Trainer is used, which costs the same to evaluate as a trained one.
+ *
+ * Usage: ServerLoadTest [checkpoint] [clients] [requests]
+ * Run from the CRBM directory.
+ */
+public class ServerLoadTest {
+
+    private static final String dataPath = "Data/MNIST_1000_Database";
+    private static final int queueDepth = 256;
+    private static final int maxBatchSize = 64;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        FeatureStack stack = args.length > 0 ? FeatureStack.load(new File(args[0])) : randomStack();
+        if (stack == null) {
+            return;
+        }
+
+        File[] files = new File(dataPath).listFiles();
+        Arrays.sort(files);
+        byte[][] images = new byte[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            images[i] = Files.readAllBytes(files[i].toPath());
+        }
+
+        // warm up
+        run(stack, images, clients, requests / 4, maxBatchSize, false);
+
+        run(stack, images, clients, requests, 1, true);
+        run(stack, images, clients, requests, maxBatchSize, true);
+    }
+
+    private static FeatureStack randomStack() {
+        int K = 15;
+        int filterEdgeLength = 5;
+        LayerStack layers = LayerStack.create(32)
+                .then(new CRBM(K, filterEdgeLength, 0), 2)
+                .then(new CRBM(K, filterEdgeLength, 1), 2);
+        int rbmInputSize = layers.getOutputSize();
+
+        RBMJBlasOpti rbm = new RBMJBlasOpti(rbmInputSize, 100, 0.01f, new DefaultLogisticMatrixFunction(), true, 0, null);
+
+        // cluster the codes of the sample, so that every request finds a label
+        DataSet[] data = Main.loadData(dataPath);
+        FeatureStack unclustered = new FeatureStack(layers, rbm, null);
+        DataSet[] codes = Main.arrayToDataSet(unclustered.encode(Main.dataSetToArray(data)), data);
+        List<Cluster> clusters = Main.generateClusters(codes);
+
+        return new FeatureStack(layers, rbm, clusters);
+    }
+
+    private static void run(FeatureStack stack, final byte[][] images, int clients, final int requests, int batchSize, boolean report) throws Exception {
+        InferenceServer server = new InferenceServer(stack, 0, queueDepth, batchSize);
+        server.start();
+        final URL url = new URL("http://localhost:" + server.getPort() + "/encode");
+
+        final long[] latencies = new long[requests];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+                        long requestStart = System.nanoTime();
+                        try {
+                            int status = post(url, images[i % images.length]);
+                            if (status == 503) {
+                                rejected.incrementAndGet();
+                            } else if (status != 200) {
+                                failed.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - requestStart;
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        float seconds = (System.nanoTime() - start) / 1e9f;
+        server.stop();
+
+        if (report) {
+            Arrays.sort(latencies);
+            System.out.println("max batch " + batchSize + ", " + clients + " clients: "
+                    + requests / seconds + " requests/sec, p50 " + latencies[requests / 2] / 1e6f + " ms, p99 "
+                    + latencies[(int) (requests * 0.99)] / 1e6f + " ms, " + rejected.get() + " rejected, " + failed.get() + " failed");
+        }
+    }
+
+    private static int post(URL url, byte[] image) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(image);
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // drain so the connection can be reused
+            }
+            in.close();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,69 @@
+package crbm.bench.jmh;
+
+import crbm.DefaultLogisticMatrixFunction;
+import crbm.FastLogisticMatrixFunction;
+import crbm.ILogistic;
+import crbm.LookupLogisticMatrixFunction;
+import java.util.Random;
+import org.jblas.FloatMatrix;
+
+/**
+ * Random inputs shared by the benchmarks, seeded so that every build measures
+ * the same data.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    static float[] random(Random random, int size) {
+        float[] result = new float[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = random.nextFloat();
+        }
+        return result;
+    }
+
+    static float[][] random(Random random, int count, int size) {
+        float[][] result = new float[count][];
+        for (int i = 0; i < count; i++) {
+            result[i] = random(random, size);
+        }
+        return result;
+    }
+
+    static FloatMatrix matrix(Random random, int rows, int columns) {
+        return new FloatMatrix(rows, columns, random(random, rows * columns));
+    }
+
+    /**
+     * Input size of the RBM on top of one CRBM layer with 2x2 max pooling.
+     */
+    static int rbmInputSize(int K, int filterEdgeLength, int dataEdgeLength) {
+        int pooledEdgeLength = (dataEdgeLength - filterEdgeLength + 2) / 2;
+        return K * pooledEdgeLength * pooledEdgeLength;
+    }
+
+    /**
+     * The logistic function by name. The vector version is loaded by name
+     * because it is only on the classpath when compiled from CRBM/vector.
+     */
+    static ILogistic logistic(String name) {
+        switch (name) {
+            case "default":
+                return new DefaultLogisticMatrixFunction();
+            case "fast":
+                return new FastLogisticMatrixFunction();
+            case "lookup":
+                return new LookupLogisticMatrixFunction();
+            case "vector":
+                try {
+                    return (ILogistic) Class.forName("crbm.VectorLogisticMatrixFunction").getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    throw new IllegalStateException("Vector logistic needs CRBM/vector and --add-modules jdk.incubator.vector", e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown logistic function: " + name);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package crbm.bench.jmh;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks and writes the results as JSON, so that the files of
+ * two builds can be diffed.
+ *
+ * Usage: BenchmarkRunner [result file] [benchmark regex]
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = args.length > 0 ? args[0] : "jmh-result.json";
+        String include = args.length > 1 ? args[1] : "crbm\\.bench\\.jmh\\..*";
+
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build()).run();
+    }
+}
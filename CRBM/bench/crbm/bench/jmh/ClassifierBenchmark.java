@@ -0,0 +1,68 @@
+package crbm.bench.jmh;
+
+import crbm.CentroidClassifier;
+import crbm.Cluster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Nearest-centroid classification of the RBM codes: the batched GEMM and
+ * argmin of CentroidClassifier against a scan calling distanceToCenter for
+ * every code and cluster, like Main.checkClusters used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifierBenchmark {
+
+    @Param({"100000"})
+    int codes;
+
+    @Param({"100"})
+    int dimension;
+
+    @Param({"10", "100"})
+    int clusters;
+
+    float[][] data;
+    List<Cluster> clusterList;
+    CentroidClassifier classifier;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        data = BenchmarkData.random(random, codes, dimension);
+        clusterList = new ArrayList<>();
+        for (float[] center : BenchmarkData.random(random, clusters, dimension)) {
+            clusterList.add(new Cluster("label" + clusterList.size(), center));
+        }
+        classifier = new CentroidClassifier(clusterList);
+    }
+
+    @Benchmark
+    public int[] classify() {
+        return classifier.classify(data);
+    }
+
+    @Benchmark
+    public String[] scan() {
+        String[] result = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            float bestClusterDistance = Float.MAX_VALUE;
+            for (Cluster c : clusterList) {
+                float clusterDistance = c.distanceToCenter(data[i]);
+                if (clusterDistance < bestClusterDistance) {
+                    bestClusterDistance = clusterDistance;
+                    result[i] = c.getLabel();
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package crbm.bench.jmh;
+
+import crbm.Convolution;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.jblas.FloatMatrix;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The CRBM convolution: the reference loops (one pass per filter) against
+ * im2col with a single mmul for all K filters, and against the FFTs of the
+ * image and the filters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvolutionBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"5", "9"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    float[] image;
+    float[][] channels;
+    float[][] filters;
+    FloatMatrix W;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        image = BenchmarkData.random(random, dataEdgeLength * dataEdgeLength);
+        channels = BenchmarkData.random(random, K, dataEdgeLength * dataEdgeLength);
+        filters = BenchmarkData.random(random, K, filterEdgeLength * filterEdgeLength);
+        W = new FloatMatrix(filters).transpose();
+    }
+
+    @Benchmark
+    public void filter(Blackhole blackhole) {
+        for (float[] filter : filters) {
+            blackhole.consume(Convolution.filter(image, filter, dataEdgeLength, filterEdgeLength));
+        }
+    }
+
+    @Benchmark
+    public void filterChannels(Blackhole blackhole) {
+        for (float[] filter : filters) {
+            blackhole.consume(Convolution.filter(channels, filter, dataEdgeLength, filterEdgeLength, true));
+        }
+    }
+
+    @Benchmark
+    public FloatMatrix im2col() {
+        return Convolution.im2col(image, dataEdgeLength, filterEdgeLength).mmul(W);
+    }
+
+    @Benchmark
+    public FloatMatrix fft() {
+        return Convolution.fft(image, 1, 1, dataEdgeLength, filterEdgeLength, W);
+    }
+
+    @Benchmark
+    public FloatMatrix im2colChannels() {
+        return Convolution.im2col(Convolution.average(channels), dataEdgeLength, filterEdgeLength).mmul(W);
+    }
+}
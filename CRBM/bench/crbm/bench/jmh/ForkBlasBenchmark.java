@@ -0,0 +1,106 @@
+package crbm.bench.jmh;
+
+import crbm.rbm.ForkBlas;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.jblas.FloatMatrix;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ForkBlas.pgemm against a single-threaded mmul for the products of a
+ * training step of RBMJBlasOpti, for a mini-batch and the full data set:
+ *
+ * hidden       data x W         (images x visible) x (visible x hidden)
+ * associations data^T x hidden  (visible x images) x (images x hidden)
+ * visible      hidden x W^T     (images x hidden) x (hidden x visible)
+ *
+ * mmul materializes the transposes like the RBM used to, visible and hidden
+ * include the bias unit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForkBlasBenchmark {
+
+    @Param({"15"})
+    int K;
+
+    @Param({"5"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"20", "1000"})
+    int images;
+
+    @Param({"100"})
+    int hiddenSize;
+
+    @Param({"hidden", "associations", "visible"})
+    String product;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    FloatMatrix data;
+    FloatMatrix weights;
+    FloatMatrix hidden;
+    FloatMatrix result;
+    ForkBlas forkBlas;
+
+    @Setup
+    public void setup() {
+        int visibleSize = BenchmarkData.rbmInputSize(K, filterEdgeLength, dataEdgeLength) + 1;
+        Random random = new Random(0);
+        data = BenchmarkData.matrix(random, images, visibleSize);
+        weights = BenchmarkData.matrix(random, visibleSize, hiddenSize + 1);
+        hidden = BenchmarkData.matrix(random, images, hiddenSize + 1);
+        switch (product) {
+            case "hidden":
+                result = new FloatMatrix(images, hiddenSize + 1);
+                break;
+            case "associations":
+                result = new FloatMatrix(visibleSize, hiddenSize + 1);
+                break;
+            default:
+                result = new FloatMatrix(images, visibleSize);
+        }
+        forkBlas = new ForkBlas(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        forkBlas.shutdown();
+    }
+
+    @Benchmark
+    public FloatMatrix pgemm() {
+        switch (product) {
+            case "hidden":
+                forkBlas.pgemm(false, false, data, weights, result);
+                break;
+            case "associations":
+                forkBlas.pgemm(true, false, data, hidden, result);
+                break;
+            default:
+                forkBlas.pgemm(false, true, hidden, weights, result);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public FloatMatrix mmul() {
+        switch (product) {
+            case "hidden":
+                return data.mmuli(weights, result);
+            case "associations":
+                return data.transpose().mmuli(hidden, result);
+            default:
+                return hidden.mmuli(weights.transpose(), result);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package crbm.bench.jmh;
+
+import crbm.ImageScaler;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Scaling one decoded image to intensities like DataConverter: the AWT
+ * SCALE_SMOOTH path with getRGB before and the array resampler of
+ * ImageScaler. Paths are relative to the CRBM directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageScalingBenchmark {
+
+    // a 28x28 gray MNIST digit and a 128x96 color photo
+    @Param({"Data/MNIST_1000_Database/0_01.png", "Data/Test_10x5/apfelgruen_01.jpg"})
+    String path;
+
+    @Param({"28", "64"})
+    int edgeLength;
+
+    // awt, or a method of the array resampler
+    @Param({"awt", "AREA", "BILINEAR", "NEAREST_NEIGHBOUR"})
+    String scaler;
+
+    BufferedImage image;
+    float[] result;
+
+    @Setup
+    public void setup() throws IOException {
+        image = ImageIO.read(new File(path));
+        result = new float[edgeLength * edgeLength];
+    }
+
+    @Benchmark
+    public float[] scale() {
+        if (!scaler.equals("awt")) {
+            new ImageScaler(image).scaleIntensity(edgeLength, ImageScaler.Method.valueOf(scaler), result);
+            return result;
+        }
+
+        BufferedImage scaled = new ImageScaler(image).scale(edgeLength);
+        int[] pixels = scaled.getRGB(0, 0, edgeLength, edgeLength, null, 0, edgeLength);
+        for (int p = 0; p < pixels.length; p++) {
+            int argb = pixels[p];
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            result[p] = Math.max(0.0f, Math.min(1.0f, (float) (0.299 * r + 0.587 * g + 0.114 * b) / 255.0f));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package crbm.bench.jmh;
+
+import crbm.CRBM;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Hidden encoding of a CRBM layer for a set of images, image by image and
+ * in batches on an executor with the given number of threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"5", "9"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"200"})
+    int images;
+
+    @Param({"32"})
+    int batchSize;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    CRBM crbm;
+    float[][] data;
+    ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        crbm = new CRBM(K, filterEdgeLength, 0);
+        data = BenchmarkData.random(new Random(0), images, dataEdgeLength * dataEdgeLength);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public float[][][] serial() {
+        return crbm.getHidden(data, dataEdgeLength);
+    }
+
+    @Benchmark
+    public float[][][] batched() {
+        return crbm.getHidden(data, dataEdgeLength, batchSize, executor);
+    }
+}
@@ -0,0 +1,50 @@
+package crbm.bench.jmh;
+
+import crbm.DataSet;
+import crbm.Main;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * loadData of an image folder, which decodes it on the first run and reads
+ * the cache after that. The folder is copied to a temporary directory, so
+ * the cache is written there and not next to the data. Paths are relative
+ * to the CRBM directory. See {@link LoadImagesBenchmark} for the decoding
+ * itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadDataBenchmark {
+
+    @Param({"Data/MNIST_1000_Database"})
+    String path;
+
+    File directory;
+    String copy;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("load").toFile();
+        File folder = new File(directory, new File(path).getName());
+        FileUtils.copyDirectory(new File(path), folder);
+        copy = folder.getPath();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public DataSet[] loadData() {
+        return Main.loadData(copy);
+    }
+}
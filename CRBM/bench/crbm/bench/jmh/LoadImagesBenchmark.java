@@ -0,0 +1,41 @@
+package crbm.bench.jmh;
+
+import crbm.DataSet;
+import crbm.Main;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Decoding, scaling and padding of an image folder with loadImages, which
+ * never touches the cache, on threads decoding threads. Paths are relative
+ * to the CRBM directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadImagesBenchmark {
+
+    @Param({"Data/MNIST_1000_Database"})
+    String path;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    File[] files;
+
+    @Setup
+    public void setup() {
+        files = new File(path).listFiles();
+        Arrays.sort(files);
+    }
+
+    @Benchmark
+    public DataSet[] loadImages() {
+        return Main.loadImages(files, threads);
+    }
+}
@@ -0,0 +1,54 @@
+package crbm.bench.jmh;
+
+import crbm.ILogistic;
+import java.util.concurrent.TimeUnit;
+import org.jblas.FloatMatrix;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The sigmoid over all hidden units of one CRBM layer for a batch of images,
+ * for every ILogistic implementation.
+ * The input is restored before every call so the sigmoid always sees the
+ * same values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogisticBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"5", "9"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"10"})
+    int images;
+
+    @Param({"default", "fast", "lookup", "vector"})
+    String function;
+
+    ILogistic logistic;
+    FloatMatrix input;
+    FloatMatrix m;
+
+    @Setup
+    public void setup() {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        logistic = BenchmarkData.logistic(function);
+        input = FloatMatrix.randn(images * rEdgeLength * rEdgeLength, K).muli(4.0f);
+        m = new FloatMatrix(input.rows, input.columns);
+    }
+
+    @Benchmark
+    public FloatMatrix function() {
+        System.arraycopy(input.data, 0, m.data, 0, input.data.length);
+        return logistic.function(m);
+    }
+}
@@ -0,0 +1,87 @@
+package crbm.bench.jmh;
+
+import crbm.MaxPooling;
+import crbm.Trainer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Max pooling of the K hidden maps: of one image through Trainer, of a batch
+ * of images in parallel with and without argmax indices, and probabilistic
+ * max pooling of the activations of a batch stored one after another. The
+ * probabilistic version works in place, so it starts from a copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolingBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"5", "9"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"2"})
+    int poolingSize;
+
+    @Param({"100"})
+    int images;
+
+    Trainer trainer;
+    MaxPooling pooling;
+    int rEdgeLength;
+    float[][] hidden;
+    float[][][] batch;
+    int[][][] argmax;
+    float[] activations;
+    float[] workingActivations;
+    float[] pooled;
+
+    @Setup
+    public void setup() {
+        rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        trainer = new Trainer();
+        pooling = new MaxPooling(poolingSize);
+        Random random = new Random(0);
+        hidden = BenchmarkData.random(random, K, rEdgeLength * rEdgeLength);
+        batch = new float[images][][];
+        for (int i = 0; i < images; i++) {
+            batch[i] = BenchmarkData.random(random, K, rEdgeLength * rEdgeLength);
+        }
+        argmax = new int[images][][];
+        activations = BenchmarkData.random(random, images * K * rEdgeLength * rEdgeLength);
+        workingActivations = new float[activations.length];
+        int pooledEdgeLength = pooling.pooledEdgeLength(rEdgeLength);
+        pooled = new float[images * K * pooledEdgeLength * pooledEdgeLength];
+    }
+
+    @Benchmark
+    public float[][] maxPooling() {
+        return trainer.maxPooling(hidden, poolingSize, dataEdgeLength, filterEdgeLength);
+    }
+
+    @Benchmark
+    public float[][][] poolBatch() {
+        return pooling.pool(batch, rEdgeLength, null);
+    }
+
+    @Benchmark
+    public float[][][] poolBatchArgmax() {
+        return pooling.pool(batch, rEdgeLength, argmax);
+    }
+
+    @Benchmark
+    public float[] probabilisticPool() {
+        System.arraycopy(activations, 0, workingActivations, 0, activations.length);
+        pooling.probabilisticPool(workingActivations, images * K, rEdgeLength, pooled);
+        return pooled;
+    }
+}
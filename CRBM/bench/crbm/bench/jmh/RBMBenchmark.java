@@ -0,0 +1,66 @@
+package crbm.bench.jmh;
+
+import crbm.DefaultLogisticMatrixFunction;
+import crbm.rbm.RBMJBlasOpti;
+import crbm.rbm.StoppingCondition;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One full-batch and one mini-batch training epoch and the hidden encoding of
+ * the RBM that sits on top of the pooled CRBM features.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RBMBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"5", "9"})
+    int filterEdgeLength;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"1000"})
+    int images;
+
+    @Param({"100"})
+    int hiddenSize;
+
+    @Param({"20"})
+    int batchSize;
+
+    RBMJBlasOpti rbm;
+    float[][] data;
+
+    @Setup
+    public void setup() {
+        int inputSize = BenchmarkData.rbmInputSize(K, filterEdgeLength, dataEdgeLength);
+        data = BenchmarkData.random(new Random(0), images, inputSize);
+        rbm = new RBMJBlasOpti(inputSize, hiddenSize, 0.01f, new DefaultLogisticMatrixFunction(), true, 0, null);
+    }
+
+    @Benchmark
+    public RBMJBlasOpti trainEpoch() {
+        rbm.train(data, new StoppingCondition(1), false, false);
+        return rbm;
+    }
+
+    @Benchmark
+    public RBMJBlasOpti trainMiniBatchEpoch() {
+        rbm.train(data, new StoppingCondition(1), batchSize, false, false);
+        return rbm;
+    }
+
+    @Benchmark
+    public float[][] getHidden() {
+        return rbm.getHidden(data, false);
+    }
+}
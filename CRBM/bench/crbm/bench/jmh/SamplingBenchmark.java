@@ -0,0 +1,71 @@
+package crbm.bench.jmh;
+
+import crbm.Sampling;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Bernoulli sampling of all hidden units of one CRBM layer for a batch of
+ * images. random is the former kernel, one nextDouble() per unit on a
+ * java.util.Random shared by all threads. Run with -t to see the contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+
+    @Param({"15", "30"})
+    int K;
+
+    @Param({"32", "64"})
+    int dataEdgeLength;
+
+    @Param({"10"})
+    int images;
+
+    final int filterEdgeLength = 5;
+
+    Random shared;
+    float[] probabilities;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        SplittableRandom random = new SplittableRandom(0);
+        float[] result;
+    }
+
+    @Setup
+    public void setup() {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        shared = new Random(0);
+        probabilities = BenchmarkData.random(new Random(0), images * rEdgeLength * rEdgeLength * K);
+    }
+
+    @Benchmark
+    public float[] random(Worker worker) {
+        float[] result = result(worker);
+        for (int i = 0; i < probabilities.length; i++) {
+            result[i] = (probabilities[i] > shared.nextDouble()) ? 1 : 0;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public float[] splittable(Worker worker) {
+        float[] result = result(worker);
+        Sampling.bernoulli(probabilities, 0, probabilities.length, result, worker.random);
+        return result;
+    }
+
+    private float[] result(Worker worker) {
+        if (worker.result == null) {
+            worker.result = new float[probabilities.length];
+        }
+        return worker.result;
+    }
+}
@@ -0,0 +1,83 @@
+package crbm.bench.jmh;
+
+import crbm.CRBM;
+import crbm.LayerStack;
+import crbm.MaxPooling;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding a set of images by a stack of CRBM layers with 2x2 max pooling:
+ * layer by layer through the batch methods of CRBM and MaxPooling, which
+ * allocate the maps of every stage, and through one reused plan of the
+ * LayerStack. The layer by layer version skips the normalization of the
+ * first layer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackBenchmark {
+
+    @Param({"2", "3"})
+    int layers;
+
+    @Param({"15"})
+    int K;
+
+    @Param({"40"})
+    int dataEdgeLength;
+
+    @Param({"500"})
+    int images;
+
+    @Param({"100"})
+    int batchSize;
+
+    LayerStack stack;
+    LayerStack.Plan plan;
+    float[][] data;
+    float[][] codes;
+
+    @Setup
+    public void setup() {
+        stack = LayerStack.create(dataEdgeLength);
+        for (int l = 0; l < layers; l++) {
+            stack = stack.then(new CRBM(l == 0 ? 1 : K, K, l < 2 ? 5 : 3, l), 2);
+        }
+        plan = stack.plan(batchSize);
+        data = BenchmarkData.random(new Random(0), images, dataEdgeLength * dataEdgeLength);
+        codes = new float[images][stack.getOutputSize()];
+    }
+
+    @Benchmark
+    public float[][][] layerByLayer() {
+        int[] dataEdgeLengths = stack.getDataEdgeLengths();
+        int[] poolingSizes = stack.getPoolingSizes();
+        float[][][] result = new float[images][][];
+        for (int i = 0; i < images; i += batchSize) {
+            float[][] batch = new float[Math.min(batchSize, images - i)][];
+            System.arraycopy(data, i, batch, 0, batch.length);
+            float[][][] maps = null;
+            for (int l = 0; l < layers; l++) {
+                CRBM crbm = stack.getCRBM(l);
+                maps = l == 0 ? crbm.getHiddenBatch(batch, dataEdgeLengths[l]) : crbm.getHiddenBatch2D(maps, dataEdgeLengths[l]);
+                maps = new MaxPooling(poolingSizes[l]).pool(maps, dataEdgeLengths[l] - crbm.getFilterEdgeLength() + 1, null);
+            }
+            System.arraycopy(maps, 0, result, i, maps.length);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public float[][] plan() {
+        for (int i = 0; i < images; i += batchSize) {
+            plan.run(data, i, Math.min(batchSize, images - i));
+            plan.getOutput(codes, i);
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,142 @@
+package crbm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the encoding of a layer batch by batch on an executor. The executor is
+ * owned by the caller, so one pool can be shared by all layers.
+ */
+public class BatchInference {
+
+    /**
+     * Encodes one batch. Called concurrently, so implementations must not
+     * change shared state.
+     */
+    public interface Encoder<I, O> {
+        O[] encode(List<I> batch);
+    }
+
+    /**
+     * Encodes all data in batches of batchSize and blocks until all batches
+     * are done.
+     */
+    public static <I, O> O[] encode(I[] data, O[] result, int batchSize, ExecutorService executor, Encoder<I, O> encoder) {
+        List<I> list = Arrays.asList(data);
+
+        List<Future<O[]>> futures = new ArrayList<>();
+        for (int i = 0; i < data.length; i += batchSize) {
+            futures.add(submit(list.subList(i, Math.min(i + batchSize, data.length)), executor, encoder));
+        }
+
+        for (int b = 0; b < futures.size(); b++) {
+            O[] batch = get(futures.get(b));
+            System.arraycopy(batch, 0, result, b * batchSize, batch.length);
+        }
+        return result;
+    }
+
+    /**
+     * Streaming version reading two batches ahead per core.
+     */
+    public static <I, O> Iterator<O> encode(Iterator<I> data, int batchSize, ExecutorService executor, Encoder<I, O> encoder) {
+        return encode(data, batchSize, 2 * Runtime.getRuntime().availableProcessors(), executor, encoder);
+    }
+
+    /**
+     * Encodes the data lazily in batches of batchSize. At most maxBatches
+     * batches are read ahead and encoded concurrently, the encodings are
+     * returned in input order as soon as their batch is done.
+     */
+    public static <I, O> Iterator<O> encode(Iterator<I> data, int batchSize, int maxBatches, ExecutorService executor, Encoder<I, O> encoder) {
+        return new EncodingIterator<>(data, batchSize, maxBatches, executor, encoder);
+    }
+
+    private static <I, O> Future<O[]> submit(final List<I> batch, ExecutorService executor, final Encoder<I, O> encoder) {
+        return executor.submit(new Callable<O[]>() {
+            @Override
+            public O[] call() {
+                return encoder.encode(batch);
+            }
+        });
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static final class EncodingIterator<I, O> implements Iterator<O> {
+        final Iterator<I> data;
+        final int batchSize;
+        final int maxBatches;
+        final ExecutorService executor;
+        final Encoder<I, O> encoder;
+
+        final Deque<Future<O[]>> pending = new ArrayDeque<>();
+        O[] current;
+        int position;
+
+        EncodingIterator(Iterator<I> data, int batchSize, int maxBatches, ExecutorService executor, Encoder<I, O> encoder) {
+            this.data = data;
+            this.batchSize = batchSize;
+            this.maxBatches = maxBatches;
+            this.executor = executor;
+            this.encoder = encoder;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            while (current == null || position == current.length) {
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                current = get(pending.poll());
+                position = 0;
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public O next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            O result = current[position];
+            current[position++] = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            while (pending.size() < maxBatches && data.hasNext()) {
+                List<I> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && data.hasNext()) {
+                    batch.add(data.next());
+                }
+                pending.add(submit(batch, executor, encoder));
+            }
+        }
+    }
+}
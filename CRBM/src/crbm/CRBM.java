@@ -8,7 +8,14 @@ package crbm;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.io.FileUtils;
 import org.jblas.FloatMatrix;
@@ -22,385 +29,819 @@ import javax.imageio.ImageIO;
  */
 public class CRBM {
 
-    private final Random RANDOM = new Random();
+    /**
+     * Called after every training epoch, e.g. to write a checkpoint.
+     */
+    public interface EpochListener {
+        void epochFinished(int epoch, float error);
+    }
+
+    private final Random RANDOM;
+    // per-thread samplers for training are split from this one
+    private final SplittableRandom sampler;
+
+    private ILogistic logisticFunction = new DefaultLogisticMatrixFunction();
+    private EpochListener epochListener;
 
-    private final float[][] W;
+    // channels * filterEdgeLength^2 x K, column k holds the filters of map k
+    // for all channels stacked
+    private final FloatMatrix W;
+    private final int channels;
     private final int filterEdgeLength;
 
-    private float c_k = 0f;
-    private float b = 0f;
+    // a bias per hidden map and per input channel
+    private final float[] hiddenBiases;
+    private final float[] visibleBiases;
+
+    // pulls the mean hidden probability of every map toward sparsityTarget
+    private float sparsityTarget = 0f;
+    private float sparsityCost = 0f;
 
 
     public CRBM(int K, int filterEdgeLength) {
-        this.W = initW(K, filterEdgeLength);
+        this(1, K, filterEdgeLength, new Random());
+    }
+
+    public CRBM(int K, int filterEdgeLength, long seed) {
+        this(1, K, filterEdgeLength, new Random(seed));
+    }
+
+    /**
+     * A layer over inputs of channels maps, e.g. the K pooled maps of the
+     * layer below, with its own filter for every channel and hidden map. The
+     * input of an image is one tensor [channel][y][x] of all its maps.
+     */
+    public CRBM(int channels, int K, int filterEdgeLength, long seed) {
+        this(channels, K, filterEdgeLength, new Random(seed));
+    }
+
+    private CRBM(int channels, int K, int filterEdgeLength, Random random) {
+        this.RANDOM = random;
+        this.channels = channels;
+        this.W = initW(channels, K, filterEdgeLength);
         this.filterEdgeLength = filterEdgeLength;
+        this.hiddenBiases = new float[K];
+        this.visibleBiases = new float[channels];
+        this.sampler = new SplittableRandom(RANDOM.nextLong());
     }
 
-    private float[][] initW(int K, int filterEdgeLength) {
-        int filterDimensions = filterEdgeLength * filterEdgeLength;
-        float[][] result = new float[K][filterDimensions];
+    /**
+     * A trained layer, e.g. read from a {@link Checkpoint}.
+     */
+    CRBM(FloatMatrix W, int filterEdgeLength, float[] hiddenBiases, float[] visibleBiases) {
+        this.RANDOM = new Random();
+        this.W = W;
+        this.channels = W.rows / (filterEdgeLength * filterEdgeLength);
+        this.filterEdgeLength = filterEdgeLength;
+        this.hiddenBiases = hiddenBiases;
+        this.visibleBiases = visibleBiases;
+        this.sampler = new SplittableRandom(RANDOM.nextLong());
+    }
+
+    public int getK() {
+        return W.columns;
+    }
+
+    /**
+     * Maps per input tensor. A single channel layer averages inputs of
+     * several maps.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFilterEdgeLength() {
+        return filterEdgeLength;
+    }
+
+    FloatMatrix getW() {
+        return W;
+    }
+
+    float[] getHiddenBiases() {
+        return hiddenBiases;
+    }
+
+    float[] getVisibleBiases() {
+        return visibleBiases;
+    }
+
+    /**
+     * Sparsity regularization: after every batch the bias of each hidden map
+     * moves by learningRate * cost * (target - mean probability of the map),
+     * e.g. target 0.05 and cost 1. A cost of 0, the default, turns it off.
+     */
+    public void setSparsity(float target, float cost) {
+        this.sparsityTarget = target;
+        this.sparsityCost = cost;
+    }
+
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /**
+     * The logistic function used for the hidden and visible units, e.g. a
+     * faster approximation of the default.
+     */
+    public void setLogisticFunction(ILogistic logisticFunction) {
+        this.logisticFunction = logisticFunction;
+    }
+
+    // scaled by the channels, so that the activations start in the same range
+    private FloatMatrix initW(int channels, int K, int filterEdgeLength) {
+        int filterDimensions = channels * filterEdgeLength * filterEdgeLength;
+        FloatMatrix result = new FloatMatrix(filterDimensions, K);
 
         for (int k = 0; k < K; k++) {
             for (int i = 0; i < filterDimensions; i++) {
-                result[k][i] = (float) (((RANDOM.nextDouble() - 0.5) * 2) / (filterEdgeLength * filterEdgeLength));
+                result.put(i, k, (float) (((RANDOM.nextDouble() - 0.5) * 2) / filterDimensions));
             }
         }
         return result;
     }
 
+    /**
+     * Trains image by image on the maps of every image, see
+     * {@link #tensor(float[][])}.
+     */
     public void train(float[][][] data, int dataEdgeLength, int epochs, float learningRate, String exportPath) {
+        float[][] tensors = new float[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            tensors[i] = tensor(data[i]);
+        }
+        train(tensors, dataEdgeLength, epochs, 1, learningRate, exportPath);
+    }
+
+    public void train(float[][] data, int dataEdgeLength, int epochs, float learningRate, String exportPath) {
+        train(data, dataEdgeLength, epochs, 1, learningRate, exportPath);
+    }
+
+    /**
+     * Mini-batch contrastive divergence. The gradients of batchSize images are
+     * accumulated and W is updated once per batch with their mean.
+     */
+    public void train(float[][] data, int dataEdgeLength, int epochs, int batchSize, float learningRate, String exportPath) {
+        CRBMWorkspace workspace = new CRBMWorkspace(channels, W.columns, filterEdgeLength, dataEdgeLength, batchSize);
+        FloatMatrix gradient = new FloatMatrix(W.rows, W.columns);
 
         for (int e = 0; e < epochs; e++) {
             float error = 0;
-            for (float[][] aData : data) {
-                error += train(aData, dataEdgeLength, learningRate);
+            for (int i = 0; i < data.length; i += batchSize) {
+                int count = Math.min(batchSize, data.length - i);
+                error += gradient(data, i, count, workspace, sampler, gradient);
+                CD(gradient, workspace, learningRate, count);
             }
             error /= data.length;
             System.out.println(error);
+            epochFinished(e, error);
         }
         //killFirst();
 
         System.out.println("Training finished");
     }
 
-    public void train(float[][] data, int dataEdgeLength, int epochs, float learningRate, String exportPath) {
-
-        for (int e = 0; e < epochs; e++) {
-            float error = 0;
-            for (float[] aData : data) {
-                error += train(aData, dataEdgeLength, learningRate);
+    /**
+     * Data-parallel mini-batch training. Every batch is split across threads
+     * workers which compute their gradients into their own buffers, the
+     * buffers are summed pairwise in a tree and W is updated once per batch.
+     * Each worker samples from its own sampler split from the seed, so for a
+     * fixed seed and thread count the result is deterministic.
+     */
+    public void train(float[][] data, int dataEdgeLength, int epochs, int batchSize, int threads, float learningRate, String exportPath) {
+        SplittableRandom[] samplers = new SplittableRandom[threads];
+        CRBMWorkspace[] workspaces = new CRBMWorkspace[threads];
+        FloatMatrix[] gradients = new FloatMatrix[threads];
+        float[] errors = new float[threads];
+        for (int t = 0; t < threads; t++) {
+            samplers[t] = sampler.split();
+            workspaces[t] = new CRBMWorkspace(channels, W.columns, filterEdgeLength, dataEdgeLength, (batchSize + threads - 1) / threads);
+            gradients[t] = new FloatMatrix(W.rows, W.columns);
+        }
+
+        // also if an epoch listener throws, e.g. writing a checkpoint
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int e = 0; e < epochs; e++) {
+                float error = 0;
+                for (int i = 0; i < data.length; i += batchSize) {
+                    int count = Math.min(batchSize, data.length - i);
+                    pool.invoke(new GradientPartly(data, i, count, samplers, workspaces, gradients, errors, 0, threads));
+                    CD(gradients[0], workspaces[0], learningRate, count);
+                    error += errors[0];
+                }
+                error /= data.length;
+                System.out.println(error);
+                epochFinished(e, error);
             }
-            error /= data.length;
-            System.out.println(error);
+        } finally {
+            pool.shutdown();
         }
-        //killFirst();
 
         System.out.println("Training finished");
     }
 
-    public void killFirst() {
-        for(int i = 0; i < W[0].length; i++) {
-            W[0][i] = 0;
+    private final class GradientPartly extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final float[][] data;
+        final int offset;
+        final int batchSize;
+        final SplittableRandom[] samplers;
+        final CRBMWorkspace[] workspaces;
+        final FloatMatrix[] gradients;
+        final float[] errors;
+        final int workerStart;
+        final int workerEnd;
+
+        public GradientPartly(float[][] data, int offset, int batchSize, SplittableRandom[] samplers, CRBMWorkspace[] workspaces, FloatMatrix[] gradients, float[] errors, int workerStart, int workerEnd) {
+            this.data = data;
+            this.offset = offset;
+            this.batchSize = batchSize;
+            this.samplers = samplers;
+            this.workspaces = workspaces;
+            this.gradients = gradients;
+            this.errors = errors;
+            this.workerStart = workerStart;
+            this.workerEnd = workerEnd;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (workerEnd - workerStart > 1) {
+                final int workerMiddle = workerStart + (workerEnd - workerStart) / 2;
+
+                invokeAll(
+                        new GradientPartly(data, offset, batchSize, samplers, workspaces, gradients, errors, workerStart, workerMiddle),
+                        new GradientPartly(data, offset, batchSize, samplers, workspaces, gradients, errors, workerMiddle, workerEnd));
+
+                // reduce
+                gradients[workerStart].addi(gradients[workerMiddle]);
+                workspaces[workerStart].addSums(workspaces[workerMiddle]);
+                errors[workerStart] += errors[workerMiddle];
+            } else {
+                int workers = gradients.length;
+                int start = offset + batchSize * workerStart / workers;
+                int end = offset + batchSize * workerEnd / workers;
+                errors[workerStart] = gradient(data, start, end - start, workspaces[workerStart], samplers[workerStart], gradients[workerStart]);
+            }
         }
     }
 
-    private float train(float[][] data, int dataEdgeLength, float learningRate) {
-        int offset = filterEdgeLength - 1;
-        int K = W.length;
-        float[][] W1;
-
-        float[][] PH0_k = new float[K][];
-        float[][] Grad0_k = new float[K][];
-        float[][] H0_k = new float[K][];
+    /**
+     * Mini-batch training streamed from a mapped data set, only one batch is
+     * on the heap at a time. The records are the input tensors, or hold
+     * several maps that a single channel layer averages.
+     */
+    public void train(MappedDataSet data, int dataEdgeLength, int epochs, int batchSize, float learningRate, String exportPath) {
+        CRBMWorkspace workspace = new CRBMWorkspace(channels, W.columns, filterEdgeLength, dataEdgeLength, batchSize);
+        FloatMatrix gradient = new FloatMatrix(W.rows, W.columns);
+        float[] record = new float[data.getRecordLength()];
 
-        for (int k = 0; k < K; k++) {
-            PH0_k[k] = filter(data, W[k], dataEdgeLength, filterEdgeLength, true);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
+        for (int e = 0; e < epochs; e++) {
+            float error = 0;
+            for (int i = 0; i < data.size(); i += batchSize) {
+                int count = Math.min(batchSize, data.size() - i);
+                read(data, i, count, workspace, record);
+                error += gradient(count, workspace, sampler, gradient);
+                CD(gradient, workspace, learningRate, count);
             }
-            PH0_k[k] = logistic(PH0_k[k]);
-            Grad0_k[k] = filter(data, PH0_k[k], dataEdgeLength, dataEdgeLength - offset, true);
-            H0_k[k] = bernoulli(PH0_k[k]);
+            error /= data.size();
+            System.out.println(error);
+            epochFinished(e, error);
         }
 
-        W1 = flip(W);
+        System.out.println("Training finished");
+    }
 
-        float[] V1m = new float[(dataEdgeLength - offset * 2) * (dataEdgeLength - offset * 2)];
-        for (int k = 0; k < W1.length; k++) {
-            float[] r = filter(data, W1[k], dataEdgeLength - offset, this.filterEdgeLength, true);
-            V1m = add(V1m, r);
+    /**
+     * Copies count records from start on into ws.V0, averaged if the records
+     * hold more maps than the layer has channels.
+     */
+    private void read(MappedDataSet data, int start, int count, CRBMWorkspace ws, float[] record) {
+        int dataSize = ws.dataEdgeLength * ws.dataEdgeLength;
+        int maps = data.getRecordLength() / dataSize;
+        if (maps != channels && channels != 1) {
+            throw new IllegalArgumentException("Records of " + maps + " maps for a layer of " + channels + " channels");
+        }
+
+        for (int j = 0; j < count; j++) {
+            if (maps != channels) {
+                data.get(start + j, record, 0);
+                average(record, maps, ws.V0, j * dataSize, dataSize);
+            } else {
+                data.get(start + j, ws.V0, j * channels * dataSize);
+            }
         }
+    }
 
-        addBias(V1m, b);
-        float[] V1 = logistic(V1m);
-        if(data != null) {
-            V1 = concat(data, V1, dataEdgeLength, filterEdgeLength);
+    private void epochFinished(int epoch, float error) {
+        if (epochListener != null) {
+            epochListener.epochFinished(epoch, error);
         }
+    }
 
-        // float[] V1 = getVisible(H0_k, data, dataEdgeLength);
-
-        float[][] PH1_k = new float[K][];
-        float[][] Grad1_k = new float[K][];
-
-        for (int k = 0; k < K; k++) {
-            PH1_k[k] = filter(V1, W[k], dataEdgeLength, filterEdgeLength);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
-            }
-            PH1_k[k] = logistic(PH1_k[k]);
-            Grad1_k[k] = filter(V1, PH1_k[k], dataEdgeLength, dataEdgeLength - offset);
-            W[k] = CD(W[k], Grad0_k[k], Grad1_k[k], learningRate);
+    public void killFirst() {
+        for(int i = 0; i < W.rows; i++) {
+            W.put(i, 0, 0);
         }
+    }
 
-        return 0.0f;
+    /**
+     * Writes the summed CD gradient of the batch into gradient, the sums for
+     * the bias updates into the workspace and returns the summed
+     * reconstruction error. Works entirely in the buffers of the
+     * workspace and only reads W, so workers with their own workspace may run
+     * it concurrently.
+     */
+    private float gradient(float[][] data, int offset, int batchSize, CRBMWorkspace ws, SplittableRandom random, FloatMatrix gradient) {
+        int tensorSize = channels * ws.dataEdgeLength * ws.dataEdgeLength;
+
+        // the batch as one contiguous tensor
+        for (int i = 0; i < batchSize; i++) {
+            System.arraycopy(data[offset + i], 0, ws.V0, i * tensorSize, tensorSize);
+        }
+        return gradient(batchSize, ws, random, gradient);
     }
 
-    private float train(float[] data, int dataEdgeLength, float learningRate) {
-        int offset = filterEdgeLength - 1;
-        int K = W.length;
-        float[][] W1;
+    /**
+     * Same as above for a batch already copied into ws.V0.
+     */
+    private float gradient(int batchSize, CRBMWorkspace ws, SplittableRandom random, FloatMatrix gradient) {
+        if (batchSize == 0) {
+            gradient.fill(0f);
+            Arrays.fill(ws.PH0Sums, 0f);
+            Arrays.fill(ws.PH1Sums, 0f);
+            Arrays.fill(ws.VDiffSums, 0f);
+            return 0f;
+        }
 
-        float[][] PH0_k = new float[K][];
-        float[][] Grad0_k = new float[K][];
-        float[][] H0_k = new float[K][];
+        int K = W.columns;
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        int dataEdgeLength = ws.dataEdgeLength;
+        int dataSize = dataEdgeLength * dataEdgeLength;
+        int tensorSize = channels * dataSize;
+        int rSize = ws.rEdgeLength * ws.rEdgeLength;
+        int mSize = ws.mEdgeLength * ws.mEdgeLength;
+        int hiddenRows = batchSize * rSize;
+
+        FFTConvolution fft = ws.fft;
+        if (fft != null) {
+            // the spectra of the filters serve both phases and the
+            // reconstruction, the spectra of V0 and V1 the gradient
+            fft.filters(W);
+            hidden(fft, ws.V0, batchSize, ws.PH0, ws.PH0Sums);
+            fft.accumulate(ws.PH0, batchSize, true);
+        } else {
+            for (int i = 0; i < batchSize; i++) {
+                Convolution.im2col(ws.V0, i * tensorSize, channels, dataEdgeLength, filterEdgeLength, ws.V0cols.data, i * rSize, ws.V0cols.rows);
+            }
+            hidden(ws.V0cols, ws.PH0, hiddenRows, ws.PH0Sums);
+            CRBMWorkspace.gemm(true, ws.V0cols, ws.PH0, ws.Grad0, W.rows, K, hiddenRows);
+        }
+        bernoulli(ws.PH0, ws.H0, hiddenRows, random);
+
+        // reconstruction
+        if (fft != null) {
+            fft.visible(ws.H0, batchSize, ws.V1m);
+        } else {
+            for (int k = 0; k < K; k++) {
+                for (int i = 0; i < batchSize; i++) {
+                    Convolution.im2col(ws.H0.data, k * ws.H0.rows + i * rSize, ws.rEdgeLength, filterEdgeLength, ws.Hcols.data, k * filterDimensions * ws.Hcols.rows + i * mSize, ws.Hcols.rows);
+                }
+            }
+            Convolution.flip(W, channels, ws.W1);
+            CRBMWorkspace.gemm(false, ws.Hcols, ws.W1, ws.V1m, batchSize * mSize, channels, K * filterDimensions);
+        }
+        for (int c = 0; c < channels; c++) {
+            logisticFunction.function(ws.V1m.data, c * ws.V1m.rows, batchSize * mSize, visibleBiases[c]);
+        }
+        concat(ws.V0, ws.V1m.data, ws.V1m.rows, ws.V1, batchSize, dataEdgeLength, filterEdgeLength);
 
-        for (int k = 0; k < K; k++) {
-            PH0_k[k] = filter(data, W[k], dataEdgeLength, filterEdgeLength);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
+        if (fft != null) {
+            hidden(fft, ws.V1, batchSize, ws.PH1, ws.PH1Sums);
+            fft.accumulate(ws.PH1, batchSize, false);
+            fft.gradient(gradient);
+        } else {
+            for (int i = 0; i < batchSize; i++) {
+                Convolution.im2col(ws.V1, i * tensorSize, channels, dataEdgeLength, filterEdgeLength, ws.V1cols.data, i * rSize, ws.V1cols.rows);
+            }
+            hidden(ws.V1cols, ws.PH1, hiddenRows, ws.PH1Sums);
+            CRBMWorkspace.gemm(true, ws.V1cols, ws.PH1, ws.Grad1, W.rows, K, hiddenRows);
+            ws.Grad0.subi(ws.Grad1, gradient);
+        }
+
+        // the border is copied from V0, so only the inner part adds to the
+        // visible bias sums
+        float error = 0;
+        Arrays.fill(ws.VDiffSums, 0f);
+        for (int i = 0; i < batchSize; i++) {
+            float sum = 0;
+            for (int c = 0; c < channels; c++) {
+                float difference = 0;
+                for (int j = (i * channels + c) * dataSize; j < (i * channels + c + 1) * dataSize; j++) {
+                    difference += ws.V0[j] - ws.V1[j];
+                    sum += (ws.V0[j] - ws.V1[j]) * (ws.V0[j] - ws.V1[j]);
+                }
+                ws.VDiffSums[c] += difference;
             }
-            PH0_k[k] = logistic(PH0_k[k]);
-            Grad0_k[k] = filter(data, PH0_k[k], dataEdgeLength, dataEdgeLength - offset);
-            H0_k[k] = bernoulli(PH0_k[k]);
+            error += (float)Math.sqrt(sum);
         }
 
-        float[] V1 = getVisible(H0_k, data, dataEdgeLength);
+        return error;
+    }
 
-        float[][] PH1_k = new float[K][];
-        float[][] Grad1_k = new float[K][];
+    /**
+     * Hidden probabilities of all K feature maps for count input tensors
+     * from V.
+     */
+    private FloatMatrix hidden(float[] V, int count, int dataEdgeLength) {
+        FloatMatrix result = convolve(V, count, dataEdgeLength);
+        logistic(result, result.rows, null);
+        return result;
+    }
 
-        for (int k = 0; k < K; k++) {
-            PH1_k[k] = filter(V1, W[k], dataEdgeLength, filterEdgeLength);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
+    /**
+     * Bottom-up activations of all K feature maps, before the logistic.
+     */
+    private FloatMatrix activation(float[] V, int count, int dataEdgeLength) {
+        FloatMatrix result = convolve(V, count, dataEdgeLength);
+        for (int k = 0; k < result.columns; k++) {
+            for (int i = k * result.rows; i < (k + 1) * result.rows; i++) {
+                result.data[i] += hiddenBiases[k];
             }
-            PH1_k[k] = logistic(PH1_k[k]);
-            Grad1_k[k] = filter(V1, PH1_k[k], dataEdgeLength, dataEdgeLength - offset);
-            W[k] = CD(W[k], Grad0_k[k], Grad1_k[k], learningRate);
         }
+        return result;
+    }
 
-        FloatMatrix V0M = new FloatMatrix(data);
-        FloatMatrix V1M = new FloatMatrix(V1);
-
-        return (float)Math.sqrt(MatrixFunctions.pow(V0M.sub(V1M), 2.0f).sum());
+    /**
+     * In-place version of {@link #hidden(FloatMatrix)} on the first rows of
+     * the buffers.
+     */
+    void hidden(FloatMatrix cols, FloatMatrix result, int rows) {
+        hidden(cols, result, rows, null);
     }
 
-    private float[] filter(float[] data, float[] filter, int dataEdgeLength, int filterEdgeLength) {
-        int offset = filterEdgeLength - 1;
-        final int rEdgeLength = dataEdgeLength - offset;
+    /**
+     * Same, the bias is added in the pass of the logistic, which also writes
+     * the sum of every map to sums if it is not null.
+     */
+    private void hidden(FloatMatrix cols, FloatMatrix result, int rows, float[] sums) {
+        CRBMWorkspace.gemm(false, cols, W, result, rows, W.columns, W.rows);
+        logistic(result, rows, sums);
+    }
 
-        float[] r = new float[rEdgeLength * rEdgeLength];
+    /**
+     * Same through the FFTs of fft, set up for this layer, for count input
+     * tensors from V.
+     */
+    void hidden(FFTConvolution fft, float[] V, int count, FloatMatrix result) {
+        fft.filters(W);
+        hidden(fft, V, count, result, null);
+    }
 
-        for (int y = 0; y < rEdgeLength; y++) {
-            for (int x = 0; x < rEdgeLength; x++) {
+    /**
+     * Same with the filters of fft already transformed.
+     */
+    private void hidden(FFTConvolution fft, float[] V, int count, FloatMatrix result, float[] sums) {
+        fft.hidden(V, count, result);
+        logistic(result, count * fft.rEdgeLength * fft.rEdgeLength, sums);
+    }
 
-                float sum = 0;
-                for (int yh = 0; yh < filterEdgeLength; yh++) {
-                    for (int xh = 0; xh < filterEdgeLength; xh++) {
-                        int pos = (y + yh) * dataEdgeLength + x + xh;
-                        sum += data[pos] * filter[yh * filterEdgeLength + xh];
-                    }
-                }
+    /**
+     * The unrolled convolutions of count input tensors from V with all K
+     * filters, through the FFTs if they are faster for this layer.
+     */
+    private FloatMatrix convolve(float[] V, int count, int dataEdgeLength) {
+        if (FFTConvolution.isFaster(channels, W.columns, filterEdgeLength, dataEdgeLength)) {
+            return Convolution.fft(V, count, channels, dataEdgeLength, filterEdgeLength, W);
+        }
+        return Convolution.im2col(V, count, channels, dataEdgeLength, filterEdgeLength).mmul(W);
+    }
 
-                r[y * rEdgeLength + x] = sum;
+    /**
+     * The logistic with the bias of every map on the first rows of the
+     * activations, in place.
+     */
+    private void logistic(FloatMatrix activations, int rows, float[] sums) {
+        for (int k = 0; k < W.columns; k++) {
+            float sum = logisticFunction.function(activations.data, k * activations.rows, rows, hiddenBiases[k]);
+            if (sums != null) {
+                sums[k] = sum;
             }
         }
+    }
 
+    private FloatMatrix bernoulli(FloatMatrix data, SplittableRandom random) {
+        FloatMatrix r = new FloatMatrix(data.rows, data.columns);
+        bernoulli(data, r, data.rows, random);
         return r;
     }
 
-    private float[] filter(float[][] data, float[] filter, int dataEdgeLength, int filterEdgeLength, boolean normalize) {
-        int offset = filterEdgeLength - 1;
-        final int rEdgeLength = dataEdgeLength - offset;
-
-        float[] r = new float[rEdgeLength * rEdgeLength];
-
-        for (int y = 0; y < rEdgeLength; y++) {
-            for (int x = 0; x < rEdgeLength; x++) {
+    private void bernoulli(FloatMatrix data, FloatMatrix result, int rows, SplittableRandom random) {
+        for (int k = 0; k < data.columns; k++) {
+            Sampling.bernoulli(data.data, k * data.rows, rows, result.data, random);
+        }
+    }
 
-                float sum = 0;
-                for (int yh = 0; yh < filterEdgeLength; yh++) {
-                    for (int xh = 0; xh < filterEdgeLength; xh++) {
-                        int pos = (y + yh) * dataEdgeLength + x + xh;
-                        int fPos = yh * filterEdgeLength + xh;
-                        for (float[] dataK : data) {
-                            sum += dataK[pos] * filter[fPos];
+    /**
+     * The visible tensors of the batch: the reconstructed inner part of every
+     * channel from V1m, whose column c holds channel c of all images, and
+     * the border from V0.
+     */
+    private float[] concat(float[] V0, float[] V1m, int V1mRows, float[] result, int batchSize, int dataEdgeLength, int filterEdgeLength) {
+        int offset = filterEdgeLength - 1;
+        int dataSize = dataEdgeLength * dataEdgeLength;
+        int mEdgeLength = dataEdgeLength - 2 * offset;
+        int mSize = mEdgeLength * mEdgeLength;
+
+        for (int i = 0; i < batchSize; i++) {
+            for (int c = 0; c < channels; c++) {
+                int start = (i * channels + c) * dataSize;
+                int startm = c * V1mRows + i * mSize;
+                for (int y = 0; y < dataEdgeLength; y++) {
+                    for (int x = 0; x < dataEdgeLength; x++) {
+                        int pos = start + y * dataEdgeLength + x;
+                        if (y < offset || x < offset || y >= dataEdgeLength - offset || x >= dataEdgeLength - offset) {
+                            result[pos] = V0[pos];
+                        } else {
+                            int posm = startm + (y - offset) * mEdgeLength + x - offset;
+                            result[pos] = V1m[posm];
                         }
                     }
                 }
-                if(normalize) {
-                    sum /= (float)data.length;
-                }
-
-                r[y * rEdgeLength + x] = sum;
             }
         }
-        return r;
+
+        return result;
     }
 
-    private float[] logistic(float[] data) {
-        float[] result = new float[data.length];
+    /**
+     * Updates W and the biases by the mean gradient of a batch of count
+     * images, from gradient and the sums in the workspace. A bias is shared
+     * by every position of its map, so its gradient is the mean over the
+     * units of the map, the summed one would outgrow the weights.
+     */
+    private void CD(FloatMatrix gradient, CRBMWorkspace ws, float learningRate, int count) {
+        W.addi(gradient.muli(learningRate / count));
 
-        for (int i = 0; i < data.length; i++) {
-            result[i] = 1.f / (float) (1. + Math.exp(-data[i]));
+        float hiddenUnits = count * ws.rEdgeLength * ws.rEdgeLength;
+        for (int k = 0; k < hiddenBiases.length; k++) {
+            hiddenBiases[k] += learningRate * (ws.PH0Sums[k] - ws.PH1Sums[k]) / hiddenUnits;
+            hiddenBiases[k] += learningRate * sparsityCost * (sparsityTarget - ws.PH0Sums[k] / hiddenUnits);
+        }
+        float visibleUnits = count * ws.mEdgeLength * ws.mEdgeLength;
+        for (int c = 0; c < visibleBiases.length; c++) {
+            visibleBiases[c] += learningRate * ws.VDiffSums[c] / visibleUnits;
         }
+    }
 
+    public float[][][] getHidden(float[][][] data, int dataEdgeLength) {
+        float[][][] result = new float[data.length][][];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = getHidden2D(data[i], dataEdgeLength);
+        }
         return result;
     }
 
-    private float[] bernoulli(float[] data) {
-        float[] r = new float[data.length];
-
+    /**
+     * Hidden probabilities for the maps of one image, see
+     * {@link #tensor(float[][])}.
+     */
+    public float[][] getHidden2D(float[][] data, int dataEdgeLength) {
+        FloatMatrix PH0 = hidden(tensor(data), 1, dataEdgeLength);
+        return Convolution.toMaps(PH0);
+    }
+    
+    public float[][][] getHidden(float[][] data, int dataEdgeLength) {
+        float[][][] result = new float[data.length][][];
         for (int i = 0; i < data.length; i++) {
-            r[i] = (data[i] > RANDOM.nextDouble()) ? 1 : 0;
+            result[i] = getHidden(data[i], dataEdgeLength);
         }
+        return result;
+    }
 
-        return r;
+    /**
+     * Hidden probabilities for an input tensor, the image itself for a single
+     * channel layer.
+     */
+    public float[][] getHidden(float[] data, int dataEdgeLength) {
+        FloatMatrix PH0 = hidden(data, 1, dataEdgeLength);
+        return Convolution.toMaps(PH0);
     }
 
-    private float[][] flip(float[][] h) {
-        float[][] result = new float[h.length][];
+    /**
+     * Hidden probabilities of all images, encoded in batches of batchSize on
+     * the executor.
+     */
+    public float[][][] getHidden(float[][] data, int dataEdgeLength, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, new float[data.length][][], batchSize, executor, encoder(dataEdgeLength));
+    }
 
-        for (int i = 0; i < h.length; i++) {
-            result[i] = flip(h[i]);
-        }
+    public float[][][] getHidden(float[][][] data, int dataEdgeLength, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, new float[data.length][][], batchSize, executor, encoder2D(dataEdgeLength));
+    }
 
-        return result;
+    /**
+     * Streaming version, the hidden probabilities are returned in input order
+     * as soon as their batch is encoded.
+     */
+    public Iterator<float[][]> getHidden(Iterator<float[]> data, int dataEdgeLength, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, batchSize, executor, encoder(dataEdgeLength));
+    }
+
+    public Iterator<float[][]> getHidden2D(Iterator<float[][]> data, int dataEdgeLength, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, batchSize, executor, encoder2D(dataEdgeLength));
     }
 
-    private float[] flip(float[] h) {
-        float[] result = new float[h.length];
+    /**
+     * Hidden probabilities of a batch in the calling thread, from one batched
+     * im2col and mmul, or the FFTs for large filters and images.
+     */
+    public float[][][] getHiddenBatch(float[][] batch, int dataEdgeLength) {
+        return hidden(batch, dataEdgeLength);
+    }
 
-        for (int i = 0; i < h.length; i++) {
-            result[i] = h[h.length - i - 1];
+    public float[][][] getHiddenBatch2D(float[][][] batch, int dataEdgeLength) {
+        float[][] tensors = new float[batch.length][];
+        for (int i = 0; i < tensors.length; i++) {
+            tensors[i] = tensor(batch[i]);
         }
+        return hidden(tensors, dataEdgeLength);
+    }
 
-        return result;
+    /**
+     * Probabilities of the pooling units of a batch by probabilistic max
+     * pooling, fused with the convolution: the activations of all maps are
+     * pooled in place in the buffer of the mmul.
+     */
+    public float[][][] getHiddenPooledBatch(float[][] batch, int dataEdgeLength, MaxPooling pooling) {
+        return hiddenPooled(batch, dataEdgeLength, pooling);
     }
 
-    private float[] add(float[] data1, float[] data2) {
-        float[] result = new float[data1.length];
-        
-        for (int i = 0; i < result.length; i++) {
-            result[i] = data1[i] + data2[i];
+    public float[][][] getHiddenPooledBatch2D(float[][][] batch, int dataEdgeLength, MaxPooling pooling) {
+        float[][] tensors = new float[batch.length][];
+        for (int i = 0; i < tensors.length; i++) {
+            tensors[i] = tensor(batch[i]);
         }
-        
-        return result;
+        return hiddenPooled(tensors, dataEdgeLength, pooling);
     }
 
-    private float[] concat(float[][] V0, float[] V1m, int dataEdgeLength, int filterEdgeLength) {
-        float[] result = new float[V0[0].length];
-
-        int offset = filterEdgeLength - 1;
+    /**
+     * The maps of one image as an input tensor: the maps themselves if the
+     * layer has a channel per map, their mean in a single channel layer.
+     */
+    private float[] tensor(float[][] maps) {
+        if (channels == 1) {
+            return Convolution.average(maps);
+        }
+        if (maps.length != channels) {
+            throw new IllegalArgumentException(maps.length + " maps for a layer of " + channels + " channels");
+        }
 
+        int size = maps[0].length;
+        float[] result = new float[channels * size];
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(maps[c], 0, result, c * size, size);
+        }
+        return result;
+    }
 
-        for (int y = 0; y < dataEdgeLength; y++) {
-            for (int x = 0; x < dataEdgeLength; x++) {
-                int pos = y * dataEdgeLength + x;
-                if (y < offset || x < offset || y >= dataEdgeLength - offset || x >= dataEdgeLength - offset) {
-                    for(int k = 0; k < V0.length; k++) {
-                        result[pos] += V0[k][pos];
-                    }
-                    result[pos] /= (float)V0.length;
-                } else {
-                    int posm = (y - offset) * (dataEdgeLength - 2 * offset) + x - offset;
-                    result[pos] = V1m[posm];
-                }
+    private BatchInference.Encoder<float[], float[][]> encoder(final int dataEdgeLength) {
+        return new BatchInference.Encoder<float[], float[][]>() {
+            @Override
+            public float[][][] encode(List<float[]> batch) {
+                return getHiddenBatch(batch.toArray(new float[batch.size()][]), dataEdgeLength);
             }
-        }
+        };
+    }
 
-        return result;
+    private BatchInference.Encoder<float[][], float[][]> encoder2D(final int dataEdgeLength) {
+        return new BatchInference.Encoder<float[][], float[][]>() {
+            @Override
+            public float[][][] encode(List<float[][]> batch) {
+                return getHiddenBatch2D(batch.toArray(new float[batch.size()][][]), dataEdgeLength);
+            }
+        };
     }
 
-    private float[] concat(float[] V0, float[] V1m, int dataEdgeLength, int filterEdgeLength) {
-        float[] result = new float[V0.length];
+    /**
+     * Only reads the layer, so batches may be encoded concurrently.
+     */
+    private float[][][] hidden(float[][] batch, int dataEdgeLength) {
+        int tensorSize = channels * dataEdgeLength * dataEdgeLength;
+        float[] V0 = new float[batch.length * tensorSize];
+        for (int i = 0; i < batch.length; i++) {
+            System.arraycopy(batch[i], 0, V0, i * tensorSize, tensorSize);
+        }
 
-        int offset = filterEdgeLength - 1;
+        FloatMatrix PH0 = hidden(V0, batch.length, dataEdgeLength);
+        int rSize = PH0.rows / batch.length;
 
-        for (int y = 0; y < dataEdgeLength; y++) {
-            for (int x = 0; x < dataEdgeLength; x++) {
-                int pos = y * dataEdgeLength + x;
-                if (y < offset || x < offset || y >= dataEdgeLength - offset || x >= dataEdgeLength - offset) {
-                    result[pos] = V0[pos];
-                } else {
-                    int posm = (y - offset) * (dataEdgeLength - 2 * offset) + x - offset;
-                    result[pos] = V1m[posm];
-                }
+        float[][][] result = new float[batch.length][W.columns][rSize];
+        for (int i = 0; i < batch.length; i++) {
+            for (int k = 0; k < W.columns; k++) {
+                System.arraycopy(PH0.data, k * PH0.rows + i * rSize, result[i][k], 0, rSize);
             }
         }
-
         return result;
     }
 
-    private float[] CD(float[] W_k, float[] Grad0_k, float[] Grad1_k, float learningRate) {
-        float[] result = new float[W_k.length];
-        
-        for (int i = 0; i < W_k.length; i++) {
-            result[i] += W_k[i] +  learningRate * (Grad0_k[i] - Grad1_k[i]);
+    private float[][][] hiddenPooled(float[][] batch, int dataEdgeLength, MaxPooling pooling) {
+        int tensorSize = channels * dataEdgeLength * dataEdgeLength;
+        float[] V0 = new float[batch.length * tensorSize];
+        for (int i = 0; i < batch.length; i++) {
+            System.arraycopy(batch[i], 0, V0, i * tensorSize, tensorSize);
+        }
+
+        // map k of image i starts at k * rows + i * rSize, all maps are
+        // stored one after another
+        FloatMatrix activations = activation(V0, batch.length, dataEdgeLength);
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        int pooledSize = pooling.pooledEdgeLength(rEdgeLength) * pooling.pooledEdgeLength(rEdgeLength);
+        float[] pooled = new float[W.columns * batch.length * pooledSize];
+        pooling.probabilisticPool(activations.data, W.columns * batch.length, rEdgeLength, pooled);
+
+        float[][][] result = new float[batch.length][W.columns][pooledSize];
+        for (int i = 0; i < batch.length; i++) {
+            for (int k = 0; k < W.columns; k++) {
+                System.arraycopy(pooled, (k * batch.length + i) * pooledSize, result[i][k], 0, pooledSize);
+            }
         }
-        
         return result;
     }
 
-    public float[][][] getHidden(float[][][] data, int dataEdgeLength) {
-        float[][][] result = new float[data.length][][];
-        for (int i = 0; i < data.length; i++) {
-            result[i] = getHidden2D(data[i], dataEdgeLength);
-        }
+    /**
+     * Hidden probabilities of a mapped data set, written to a temporary mapped
+     * data set with one record of K stacked maps per image.
+     */
+    public MappedDataSet getHidden(MappedDataSet data, int dataEdgeLength, int batchSize) throws IOException {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        MappedDataSet result = MappedDataSet.createTemp(data.size(), W.columns * rEdgeLength * rEdgeLength);
+        getHidden(data, dataEdgeLength, batchSize, result);
         return result;
     }
 
-    public float[][] getHidden2D(float[][] data, int dataEdgeLength) {
-        int offset = filterEdgeLength - 1;
-        int K = W.length;
-        float[][] W1;
-
-        float[][] PH0_k = new float[K][];
-        float[][] Grad0_k = new float[K][];
-        float[][] H0_k = new float[K][];
-
-        for (int k = 0; k < K; k++) {
-            PH0_k[k] = filter(data, W[k], dataEdgeLength, filterEdgeLength, true);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
+    /**
+     * Streams the data set through the layer batchSize images at a time.
+     * Records with several maps are read like in training.
+     */
+    public void getHidden(MappedDataSet data, int dataEdgeLength, int batchSize, MappedDataSet result) {
+        CRBMWorkspace ws = new CRBMWorkspace(channels, W.columns, filterEdgeLength, dataEdgeLength, batchSize, false);
+        int tensorSize = channels * dataEdgeLength * dataEdgeLength;
+        int rSize = ws.rEdgeLength * ws.rEdgeLength;
+        float[] record = new float[data.getRecordLength()];
+        if (ws.fft != null) {
+            ws.fft.filters(W);
+        }
+
+        for (int i = 0; i < data.size(); i += batchSize) {
+            int count = Math.min(batchSize, data.size() - i);
+            read(data, i, count, ws, record);
+            if (ws.fft != null) {
+                hidden(ws.fft, ws.V0, count, ws.PH0, null);
+            } else {
+                for (int j = 0; j < count; j++) {
+                    Convolution.im2col(ws.V0, j * tensorSize, channels, dataEdgeLength, filterEdgeLength, ws.V0cols.data, j * rSize, ws.V0cols.rows);
+                }
+                hidden(ws.V0cols, ws.PH0, count * rSize);
+            }
+            for (int j = 0; j < count; j++) {
+                for (int k = 0; k < W.columns; k++) {
+                    result.put(i + j, k * rSize, ws.PH0.data, k * ws.PH0.rows + j * rSize, rSize);
+                }
             }
-            PH0_k[k] = logistic(PH0_k[k]);
-            Grad0_k[k] = filter(data, PH0_k[k], dataEdgeLength, dataEdgeLength - offset, true);
-            H0_k[k] = bernoulli(PH0_k[k]);
-        }
-
-        return PH0_k;
-    }
-    
-    public float[][][] getHidden(float[][] data, int dataEdgeLength) {
-        float[][][] result = new float[data.length][][];
-        for (int i = 0; i < data.length; i++) {
-            result[i] = getHidden(data[i], dataEdgeLength);
         }
-        return result;
     }
 
-    public float[][] getHidden(float[] data, int dataEdgeLength) {
-
-        float[][] PH0_k = new float[W.length][];
-        float[][] H0_k = new float[W.length][];
-
-        for (int k = 0; k < W.length; k++) {
-            PH0_k[k] = filter(data, W[k], dataEdgeLength, filterEdgeLength);
-            if(k != 0) {
-                addBias(PH0_k[k], c_k);
+    private static void average(float[] channels, int count, float[] result, int resultOffset, int length) {
+        for (int p = 0; p < length; p++) {
+            float sum = 0;
+            for (int c = 0; c < count; c++) {
+                sum += channels[c * length + p];
             }
-            PH0_k[k] = logistic(PH0_k[k]);
-            H0_k[k] = bernoulli(PH0_k[k]);
+            result[resultOffset + p] = sum / (float) count;
         }
-        return PH0_k;
     }
 
+    /**
+     * Reconstructions of the input maps of every image, one per channel, from
+     * its K hidden maps, with the border of original[i] or only the inner
+     * part if original is null.
+     */
     public float[][][] getVisible2D(float[][][] data, float[][] original, int dataEdgeLength) {
-        
-        int offset = filterEdgeLength - 1;
-        float[][][] result = new float[data.length][W.length][];
-        
-        
-        float[][] W1 = flip(W);
-        for(int i = 0; i < data.length; i++) {
-            for (int k = 0; k < W1.length; k++) {
-                result[i][k] = filter(data[i], W1[k], dataEdgeLength - offset, this.filterEdgeLength, true);
+        float[][][] result = new float[data.length][channels][];
+
+        for (int i = 0; i < data.length; i++) {
+            float[] visible = getVisible(data[i], original == null ? null : original[i], dataEdgeLength);
+            int length = visible.length / channels;
+            for (int c = 0; c < channels; c++) {
+                result[i][c] = Arrays.copyOfRange(visible, c * length, (c + 1) * length);
             }
         }
 
         return result;
-
     }
 
     public float[][] getVisible(float[][][] data, float[] original, int dataEdgeLength) {
@@ -413,33 +854,50 @@ public class CRBM {
         return result;
     }
 
+    /**
+     * Reconstruction of the input tensor from the K hidden maps, with the
+     * border of original or only the inner part if original is null.
+     */
     public float[] getVisible(float[][] data, float[] original, int dataEdgeLength) {
-
-        float[][] W1 = flip(W);
         int offset = filterEdgeLength - 1;
 
-        float[] V1m = new float[(dataEdgeLength - offset * 2) * (dataEdgeLength - offset * 2)];
-        for (int k = 0; k < W1.length; k++) {
-            float[] r = filter(data[k], W1[k], dataEdgeLength - offset, this.filterEdgeLength);
-            V1m = add(V1m, r);
+        if (FFTConvolution.isFaster(channels, W.columns, filterEdgeLength, dataEdgeLength)) {
+            FFTConvolution fft = new FFTConvolution(channels, W.columns, filterEdgeLength, dataEdgeLength, 1, false);
+            FloatMatrix H = new FloatMatrix(data[0].length, W.columns);
+            for (int k = 0; k < W.columns; k++) {
+                System.arraycopy(data[k], 0, H.data, k * H.rows, H.rows);
+            }
+            int mEdgeLength = dataEdgeLength - 2 * offset;
+            FloatMatrix V1m = new FloatMatrix(mEdgeLength * mEdgeLength, channels);
+            fft.filters(W);
+            fft.visible(H, 1, V1m);
+            return visible(V1m, original, 1, dataEdgeLength);
         }
 
-        addBias(V1m, b);
-        float[] V1 = logistic(V1m);
+        // the flipped filters of a channel read as one stacked column sum the
+        // convolutions of all K maps, so one mmul reconstructs all channels
+        FloatMatrix W1 = Convolution.flip(W, channels, new FloatMatrix(W.columns * filterEdgeLength * filterEdgeLength, channels));
+        return visible(Convolution.im2col(data, dataEdgeLength - offset, filterEdgeLength).mmul(W1), original, 1, dataEdgeLength);
+    }
+
+    /**
+     * Reconstruction from the inner parts V1m of all channels, before the
+     * logistic.
+     */
+    private float[] visible(FloatMatrix V1m, float[] original, int batchSize, int dataEdgeLength) {
+        for (int c = 0; c < channels; c++) {
+            logisticFunction.function(V1m.data, c * V1m.rows, V1m.rows, visibleBiases[c]);
+        }
+
+        float[] V1 = V1m.data;
         if(original != null) {
-            V1 = concat(original, V1, dataEdgeLength, filterEdgeLength);
+            V1 = concat(original, V1, V1m.rows, new float[original.length], batchSize, dataEdgeLength, filterEdgeLength);
         }
 
         //
         return V1;
     }
 
-    private void addBias(float[] r, float bias) {
-        for(int i = 0; i < r.length; i++) {
-            r[i] += bias;
-        }
-    }
-
 //    private void exportAsImage(float[][] data, String name, int count) {
 //        for (int k = 0; k < data.length; k++) {
 //            exportAsImage(data[k], name, count, k);
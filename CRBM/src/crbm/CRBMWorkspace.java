@@ -0,0 +1,133 @@
+package crbm;
+
+import org.jblas.FloatMatrix;
+import org.jblas.NativeBlas;
+
+/**
+ * Buffers of one CRBM layer, sized once from the channels, K, the filter edge,
+ * the data edge and the batch size. The training kernels overwrite them in place, so a
+ * training step allocates nothing. Smaller batches use the first rows of
+ * every buffer.
+ *
+ * Layers whose convolutions are cheaper through FFTs, see
+ * {@link FFTConvolution#isFaster(int, int, int, int)}, get an FFTConvolution
+ * instead of the unrolled buffers of im2col.
+ */
+class CRBMWorkspace {
+
+    final int batchSize;
+    final int channels;
+    final int dataEdgeLength;
+    final int filterEdgeLength;
+    // edge of the hidden maps
+    final int rEdgeLength;
+    // edge of the reconstructed inner part of the visible layer
+    final int mEdgeLength;
+
+    // batchSize * channels * dataEdgeLength^2, [image][channel][y][x]
+    final float[] V0;
+    final float[] V1;
+
+    // set if the convolutions go through the FFTs, the im2col buffers below
+    // are null then; null otherwise
+    final FFTConvolution fft;
+
+    // batchSize * rEdgeLength^2 x channels * filterEdgeLength^2
+    final FloatMatrix V0cols;
+    final FloatMatrix V1cols;
+
+    // batchSize * rEdgeLength^2 x K
+    final FloatMatrix PH0;
+    final FloatMatrix H0;
+    final FloatMatrix PH1;
+
+    // batchSize * mEdgeLength^2 x K * filterEdgeLength^2
+    final FloatMatrix Hcols;
+    // K * filterEdgeLength^2 x channels
+    final FloatMatrix W1;
+    // batchSize * mEdgeLength^2 x channels
+    final FloatMatrix V1m;
+
+    // channels * filterEdgeLength^2 x K
+    final FloatMatrix Grad0;
+    final FloatMatrix Grad1;
+
+    // sums over the batch for the bias updates, PH0 and PH1 per map and
+    // V0 - V1 per channel
+    final float[] PH0Sums;
+    final float[] PH1Sums;
+    final float[] VDiffSums;
+
+    CRBMWorkspace(int channels, int K, int filterEdgeLength, int dataEdgeLength, int batchSize) {
+        this(channels, K, filterEdgeLength, dataEdgeLength, batchSize, true);
+    }
+
+    /**
+     * Without training only V0 and PH0 are used, and the FFTs keep no
+     * spectra of the batch.
+     */
+    CRBMWorkspace(int channels, int K, int filterEdgeLength, int dataEdgeLength, int batchSize, boolean training) {
+        int offset = filterEdgeLength - 1;
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+
+        this.batchSize = batchSize;
+        this.channels = channels;
+        this.dataEdgeLength = dataEdgeLength;
+        this.filterEdgeLength = filterEdgeLength;
+        this.rEdgeLength = dataEdgeLength - offset;
+        this.mEdgeLength = dataEdgeLength - 2 * offset;
+
+        int rSize = batchSize * rEdgeLength * rEdgeLength;
+        int mSize = batchSize * mEdgeLength * mEdgeLength;
+
+        this.V0 = new float[batchSize * channels * dataEdgeLength * dataEdgeLength];
+        this.V1 = new float[V0.length];
+        this.PH0 = new FloatMatrix(rSize, K);
+        this.H0 = new FloatMatrix(rSize, K);
+        this.PH1 = new FloatMatrix(rSize, K);
+        this.V1m = new FloatMatrix(mSize, channels);
+
+        if (FFTConvolution.isFaster(channels, K, filterEdgeLength, dataEdgeLength)) {
+            // the gradient is accumulated in the frequency domain
+            this.fft = new FFTConvolution(channels, K, filterEdgeLength, dataEdgeLength, batchSize, training);
+            this.V0cols = null;
+            this.V1cols = null;
+            this.Hcols = null;
+            this.W1 = null;
+            this.Grad0 = null;
+            this.Grad1 = null;
+        } else {
+            this.fft = null;
+            this.V0cols = new FloatMatrix(rSize, channels * filterDimensions);
+            this.V1cols = new FloatMatrix(rSize, channels * filterDimensions);
+            this.Hcols = new FloatMatrix(mSize, K * filterDimensions);
+            this.W1 = new FloatMatrix(K * filterDimensions, channels);
+            this.Grad0 = new FloatMatrix(channels * filterDimensions, K);
+            this.Grad1 = new FloatMatrix(channels * filterDimensions, K);
+        }
+        this.PH0Sums = new float[K];
+        this.PH1Sums = new float[K];
+        this.VDiffSums = new float[channels];
+    }
+
+    /**
+     * Adds the bias sums of other, to reduce the sums of parallel workers.
+     */
+    void addSums(CRBMWorkspace other) {
+        for (int k = 0; k < PH0Sums.length; k++) {
+            PH0Sums[k] += other.PH0Sums[k];
+            PH1Sums[k] += other.PH1Sums[k];
+        }
+        for (int c = 0; c < VDiffSums.length; c++) {
+            VDiffSums[c] += other.VDiffSums[c];
+        }
+    }
+
+    /**
+     * c = op(a) * b on the first m rows of a (or its first k rows if
+     * transposed) and c, using the buffer heights as leading dimensions.
+     */
+    static void gemm(boolean transposeA, FloatMatrix a, FloatMatrix b, FloatMatrix c, int m, int n, int k) {
+        NativeBlas.sgemm(transposeA ? 'T' : 'N', 'N', m, n, k, 1.0f, a.data, 0, a.rows, b.data, 0, b.rows, 0.0f, c.data, 0, c.rows);
+    }
+}
@@ -0,0 +1,155 @@
+package crbm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jblas.FloatMatrix;
+
+/**
+ * Nearest-centroid classification of codes. All centers are the columns of
+ * one matrix and the labels have dense ids, so a block of codes is scored
+ * against every center with one GEMM:
+ *
+ * |x - c|^2 = |x|^2 - 2 x.c + |c|^2
+ *
+ * |x|^2 is the same for every center, so the nearest center is the argmin of
+ * |c|^2 - 2 x.c.
+ */
+public class CentroidClassifier {
+
+    // codes scored per GEMM
+    private static final int blockSize = 1024;
+
+    private final String[] labels;
+    private final Map<String, Integer> ids;
+    // dimension x clusters
+    private final FloatMatrix centers;
+    private final float[] squaredNorms;
+
+    public CentroidClassifier(List<Cluster> clusters) {
+        this(labels(clusters), centers(clusters));
+    }
+
+    /**
+     * Centers labeled by their index, for clusters without a label like the
+     * lists of a {@link CodeIndex}.
+     */
+    public CentroidClassifier(float[][] centers) {
+        this(indexLabels(centers.length), centers);
+    }
+
+    private CentroidClassifier(String[] labels, float[][] centers) {
+        int dimension = centers[0].length;
+
+        this.labels = labels;
+        this.ids = new HashMap<>();
+        this.centers = new FloatMatrix(dimension, centers.length);
+        this.squaredNorms = new float[centers.length];
+
+        for (int c = 0; c < centers.length; c++) {
+            ids.put(labels[c], c);
+            System.arraycopy(centers[c], 0, this.centers.data, c * dimension, dimension);
+            for (float value : centers[c]) {
+                squaredNorms[c] += value * value;
+            }
+        }
+    }
+
+    private static String[] labels(List<Cluster> clusters) {
+        String[] result = new String[clusters.size()];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = clusters.get(c).getLabel();
+        }
+        return result;
+    }
+
+    private static float[][] centers(List<Cluster> clusters) {
+        float[][] result = new float[clusters.size()][];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = clusters.get(c).getCenter();
+        }
+        return result;
+    }
+
+    private static String[] indexLabels(int count) {
+        String[] result = new String[count];
+        for (int c = 0; c < count; c++) {
+            result[c] = String.valueOf(c);
+        }
+        return result;
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * -1 if no cluster has the label.
+     */
+    public int getId(String label) {
+        Integer id = ids.get(label);
+        return id != null ? id : -1;
+    }
+
+    public String getLabel(int id) {
+        return labels[id];
+    }
+
+    /**
+     * Id of the nearest center of every code.
+     */
+    public int[] classify(float[][] codes) {
+        int dimension = centers.rows;
+        int clusters = centers.columns;
+        int[] result = new int[codes.length];
+
+        // codes as columns, so every code is copied in one piece
+        FloatMatrix block = new FloatMatrix(dimension, Math.min(blockSize, codes.length));
+        FloatMatrix scores = new FloatMatrix(clusters, block.columns);
+
+        for (int start = 0; start < codes.length; start += blockSize) {
+            int count = Math.min(blockSize, codes.length - start);
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(codes[start + i], 0, block.data, i * dimension, dimension);
+            }
+
+            // x.c of every center and code
+            CRBMWorkspace.gemm(true, centers, block, scores, clusters, count, dimension);
+
+            for (int i = 0; i < count; i++) {
+                int offset = i * clusters;
+                int best = 0;
+                float bestScore = Float.MAX_VALUE;
+                for (int c = 0; c < clusters; c++) {
+                    float score = squaredNorms[c] - 2.0f * scores.data[offset + c];
+                    if (score < bestScore) {
+                        bestScore = score;
+                        best = c;
+                    }
+                }
+                result[start + i] = best;
+            }
+        }
+        return result;
+    }
+
+    public int classify(float[] code) {
+        return classify(new float[][] {code})[0];
+    }
+
+    /**
+     * Label of the nearest center of every code.
+     */
+    public String[] nearestLabels(float[][] codes) {
+        int[] ids = classify(codes);
+        String[] result = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = labels[ids[i]];
+        }
+        return result;
+    }
+
+    public String nearestLabel(float[] code) {
+        return labels[classify(code)];
+    }
+}
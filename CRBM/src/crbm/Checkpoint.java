@@ -0,0 +1,247 @@
+package crbm;
+
+import crbm.rbm.RBMJBlasOpti;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jblas.FloatMatrix;
+
+/**
+ * A trained or partially trained stack: the CRBM layers with their channels, biases,
+ * input edge length and pooling size, the RBM on top, the cluster centers of its codes
+ * and how far training got. Stored as a header followed by the raw weights,
+ * so loading maps the file and copies the weights in bulk.
+ *
+ * Training runs through the stages 0 .. crbms.length - 1 (the CRBM layers)
+ * and crbms.length (the RBM); epoch counts the finished epochs of the current
+ * stage. A checkpoint with stage crbms.length + 1 is complete.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x4352424B; // "CRBK"
+    private static final int VERSION = 4;
+
+    private final CRBM[] crbms;
+    private final int[] dataEdgeLengths;
+    private final int[] poolingSizes;
+    private final RBMJBlasOpti rbm;
+    private final List<Cluster> clusters;
+    private final int stage;
+    private final int epoch;
+
+    public Checkpoint(CRBM[] crbms, int[] dataEdgeLengths, int[] poolingSizes, RBMJBlasOpti rbm, int stage, int epoch) {
+        this(crbms, dataEdgeLengths, poolingSizes, rbm, null, stage, epoch);
+    }
+
+    public Checkpoint(CRBM[] crbms, int[] dataEdgeLengths, int[] poolingSizes, RBMJBlasOpti rbm, List<Cluster> clusters, int stage, int epoch) {
+        this.crbms = crbms;
+        this.dataEdgeLengths = dataEdgeLengths;
+        this.poolingSizes = poolingSizes;
+        this.rbm = rbm;
+        this.clusters = clusters;
+        this.stage = stage;
+        this.epoch = epoch;
+    }
+
+    public CRBM[] getCRBMs() {
+        return crbms;
+    }
+
+    public int[] getDataEdgeLengths() {
+        return dataEdgeLengths;
+    }
+
+    public int[] getPoolingSizes() {
+        return poolingSizes;
+    }
+
+    /**
+     * null before the RBM stage.
+     */
+    public RBMJBlasOpti getRBM() {
+        return rbm;
+    }
+
+    /**
+     * null if the codes have not been clustered yet.
+     */
+    public List<Cluster> getClusters() {
+        return clusters;
+    }
+
+    public int getStage() {
+        return stage;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public boolean isComplete() {
+        return stage > crbms.length;
+    }
+
+    /**
+     * Writes to a temporary file next to file and renames it, so a crash
+     * while writing keeps the previous checkpoint.
+     */
+    public void write(File file) throws IOException {
+        int size = 6 * 4;
+        for (CRBM crbm : crbms) {
+            size += 5 * 4 + (crbm.getW().length + crbm.getK() + crbm.getChannels()) * 4;
+        }
+        if (rbm != null) {
+            size += 3 * 4 + rbm.getWeightMatrix().length * 4;
+        }
+        size += 4;
+        List<byte[]> labels = new ArrayList<>();
+        if (clusters != null) {
+            for (Cluster cluster : clusters) {
+                byte[] label = cluster.getLabel().getBytes(StandardCharsets.UTF_8);
+                labels.add(label);
+                size += 2 + label.length + 4 + cluster.getCenter().length * 4;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putInt(stage).putInt(epoch);
+        buffer.putInt(crbms.length).putInt(rbm != null ? 1 : 0);
+
+        for (int i = 0; i < crbms.length; i++) {
+            FloatMatrix W = crbms[i].getW();
+            buffer.putInt(crbms[i].getK()).putInt(crbms[i].getFilterEdgeLength()).putInt(crbms[i].getChannels());
+            buffer.putInt(dataEdgeLengths[i]).putInt(poolingSizes[i]);
+            putFloats(buffer, W.data);
+            putFloats(buffer, crbms[i].getHiddenBiases());
+            putFloats(buffer, crbms[i].getVisibleBiases());
+        }
+        if (rbm != null) {
+            FloatMatrix weights = rbm.getWeightMatrix();
+            buffer.putFloat(rbm.getLearningRate()).putInt(weights.rows).putInt(weights.columns);
+            putFloats(buffer, weights.data);
+        }
+        buffer.putInt(clusters != null ? clusters.size() : -1);
+        for (int c = 0; c < labels.size(); c++) {
+            float[] center = clusters.get(c).getCenter();
+            buffer.putShort((short) labels.get(c).length).put(labels.get(c));
+            buffer.putInt(center.length);
+            putFloats(buffer, center);
+        }
+        buffer.flip();
+
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns null if there is no readable checkpoint. The RBM uses the
+     * default logistic function.
+     */
+    public static Checkpoint read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC) {
+                System.out.println("Not a checkpoint: " + file.getPath());
+                return null;
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                System.out.println("Unsupported checkpoint version " + version + ": " + file.getPath());
+                return null;
+            }
+
+            int stage = buffer.getInt();
+            int epoch = buffer.getInt();
+            int layers = buffer.getInt();
+            boolean hasRBM = buffer.getInt() != 0;
+
+            CRBM[] crbms = new CRBM[layers];
+            int[] dataEdgeLengths = new int[layers];
+            int[] poolingSizes = new int[layers];
+            for (int i = 0; i < layers; i++) {
+                int K = buffer.getInt();
+                int filterEdgeLength = buffer.getInt();
+                // version 2 and older have single channel layers
+                int channels = version > 2 ? buffer.getInt() : 1;
+                dataEdgeLengths[i] = buffer.getInt();
+                poolingSizes[i] = buffer.getInt();
+                // version 3 and older have one hidden bias, which skipped
+                // map 0, and one visible bias
+                float c_k = version > 3 ? 0f : buffer.getFloat();
+                float b = version > 3 ? 0f : buffer.getFloat();
+
+                FloatMatrix W = new FloatMatrix(channels * filterEdgeLength * filterEdgeLength, K);
+                getFloats(buffer, W.data);
+                float[] hiddenBiases = new float[K];
+                float[] visibleBiases = new float[channels];
+                if (version > 3) {
+                    getFloats(buffer, hiddenBiases);
+                    getFloats(buffer, visibleBiases);
+                } else {
+                    Arrays.fill(hiddenBiases, 1, K, c_k);
+                    Arrays.fill(visibleBiases, b);
+                }
+                crbms[i] = new CRBM(W, filterEdgeLength, hiddenBiases, visibleBiases);
+            }
+
+            RBMJBlasOpti rbm = null;
+            if (hasRBM) {
+                float learningRate = buffer.getFloat();
+                FloatMatrix weights = new FloatMatrix(buffer.getInt(), buffer.getInt());
+                getFloats(buffer, weights.data);
+                rbm = new RBMJBlasOpti(learningRate, new DefaultLogisticMatrixFunction(), weights);
+            }
+
+            // version 1 has no clusters
+            List<Cluster> clusters = null;
+            int clusterCount = version > 1 ? buffer.getInt() : -1;
+            if (clusterCount >= 0) {
+                clusters = new ArrayList<>();
+                for (int c = 0; c < clusterCount; c++) {
+                    byte[] label = new byte[buffer.getShort()];
+                    buffer.get(label);
+                    float[] center = new float[buffer.getInt()];
+                    getFloats(buffer, center);
+                    clusters.add(new Cluster(new String(label, StandardCharsets.UTF_8), center));
+                }
+            }
+
+            return new Checkpoint(crbms, dataEdgeLengths, poolingSizes, rbm, clusters, stage, epoch);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read checkpoint " + file.getPath() + ": " + e);
+            return null;
+        }
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] data) {
+        buffer.asFloatBuffer().put(data);
+        buffer.position(buffer.position() + data.length * 4);
+    }
+
+    private static void getFloats(ByteBuffer buffer, float[] data) {
+        buffer.asFloatBuffer().get(data);
+        buffer.position(buffer.position() + data.length * 4);
+    }
+}
@@ -19,6 +19,14 @@ public class Cluster {
         this.label = label;
     }
     
+    /**
+     * A cluster known only by its center, e.g. read from a checkpoint.
+     */
+    public Cluster(String label, float[] center){
+        this(label);
+        this.center = center;
+    }
+    
     public void init(){
         this.center = center();
     }
@@ -0,0 +1,371 @@
+package crbm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Approximate nearest-neighbor index over codes, e.g. the hidden codes of the
+ * RBM, for finding similar images. An inverted file: k-means centroids split
+ * the codes into lists, a query scans only the lists of its probes nearest
+ * centroids with exact squared distances. More probes give higher recall,
+ * probing all lists is exact.
+ *
+ * Codes get consecutive ids in the order they are added. A saved index is
+ * opened memory-mapped, so it is searchable without reading the codes into
+ * the heap. Codes added after opening stay in the heap until the next save.
+ * Adding is not thread-safe, searching is.
+ */
+public class CodeIndex {
+
+    private static final int MAGIC = 0x43524249; // "CRBI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final int dimension;
+    private final float[][] centroids;
+    private final CentroidClassifier quantizer;
+    private final InvertedList[] lists;
+    private int size;
+
+    private CodeIndex(float[][] centroids) {
+        this.dimension = centroids[0].length;
+        this.centroids = centroids;
+        this.quantizer = new CentroidClassifier(centroids);
+        this.lists = new InvertedList[centroids.length];
+        for (int l = 0; l < lists.length; l++) {
+            lists[l] = new InvertedList();
+        }
+    }
+
+    /**
+     * An empty index with lists centroids, found by k-means on the sample.
+     * About sqrt(number of codes) lists is a good start.
+     */
+    public static CodeIndex train(float[][] sample, int lists, int iterations, long seed) {
+        Random random = new Random(seed);
+        int dimension = sample[0].length;
+        lists = Math.min(lists, sample.length);
+
+        // distinct samples as initial centroids
+        int[] order = new int[sample.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        float[][] centroids = new float[lists][];
+        for (int c = 0; c < lists; c++) {
+            int j = c + random.nextInt(order.length - c);
+            int swap = order[c];
+            order[c] = order[j];
+            order[j] = swap;
+            centroids[c] = sample[order[c]].clone();
+        }
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int[] assignment = new CentroidClassifier(centroids).classify(sample);
+
+            float[][] sums = new float[lists][dimension];
+            int[] counts = new int[lists];
+            for (int i = 0; i < sample.length; i++) {
+                float[] sum = sums[assignment[i]];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += sample[i][d];
+                }
+                counts[assignment[i]]++;
+            }
+            for (int c = 0; c < lists; c++) {
+                if (counts[c] == 0) {
+                    // restart an empty list at a random sample
+                    centroids[c] = sample[random.nextInt(sample.length)].clone();
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    centroids[c][d] = sums[c][d] / counts[c];
+                }
+            }
+        }
+        return new CodeIndex(centroids);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getLists() {
+        return lists.length;
+    }
+
+    /**
+     * Returns the id of the code.
+     */
+    public int add(float[] code) {
+        return add(new float[][] {code});
+    }
+
+    /**
+     * Adds all codes, assigned to their lists by one GEMM. Returns the id of
+     * the first code, the others follow consecutively.
+     */
+    public int add(float[][] codes) {
+        int first = size;
+        int[] assignment = quantizer.classify(codes);
+        for (int i = 0; i < codes.length; i++) {
+            lists[assignment[i]].add(size++, codes[i], dimension);
+        }
+        return first;
+    }
+
+    public int[] search(float[] query, int k, int probes) {
+        return search(query, k, probes, null);
+    }
+
+    /**
+     * Ids of the k nearest codes in the probes nearest lists, nearest first.
+     * Fewer if these lists hold less than k codes. If distances is not null,
+     * it receives the squared distances. k and probes have to be at least 1.
+     */
+    public int[] search(float[] query, int k, int probes, float[] distances) {
+        if (k < 1 || probes < 1) {
+            throw new IllegalArgumentException("k and probes must be at least 1: k " + k + ", probes " + probes);
+        }
+        probes = Math.min(probes, lists.length);
+
+        TopK nearestLists = new TopK(probes);
+        for (int l = 0; l < lists.length; l++) {
+            nearestLists.offer(l, distance(query, centroids[l], 0, Float.MAX_VALUE));
+        }
+
+        TopK nearest = new TopK(k);
+        for (int p = 0; p < nearestLists.count; p++) {
+            lists[nearestLists.ids[p]].scan(query, dimension, nearest);
+        }
+
+        int[] result = new int[nearest.count];
+        System.arraycopy(nearest.ids, 0, result, 0, nearest.count);
+        if (distances != null) {
+            System.arraycopy(nearest.distances, 0, distances, 0, nearest.count);
+        }
+        return result;
+    }
+
+    /**
+     * Squared distance, or any value at least bound once it exceeds bound.
+     */
+    private static float distance(float[] query, float[] code, int offset, float bound) {
+        float sum = 0.0f;
+        for (int d = 0; d < query.length; d++) {
+            float difference = query[d] - code[offset + d];
+            sum += difference * difference;
+            if ((d & 15) == 15 && sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    private static float distance(float[] query, FloatBuffer codes, int offset, float bound) {
+        float sum = 0.0f;
+        for (int d = 0; d < query.length; d++) {
+            float difference = query[d] - codes.get(offset + d);
+            sum += difference * difference;
+            if ((d & 15) == 15 && sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Writes to a temporary file next to file and renames it, like
+     * {@link Checkpoint#write(File)}.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(lists.length);
+            out.writeInt(size);
+            for (int i = 20; i < HEADER_SIZE; i += 4) {
+                out.writeInt(0);
+            }
+
+            for (float[] centroid : centroids) {
+                for (float value : centroid) {
+                    out.writeFloat(value);
+                }
+            }
+            for (InvertedList list : lists) {
+                out.writeInt(list.size());
+            }
+            for (InvertedList list : lists) {
+                list.write(out, dimension);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a saved index, every list separately. Returns null if there is no
+     * readable index.
+     */
+    public static CodeIndex open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                System.out.println("Not a code index: " + file.getPath());
+                return null;
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                System.out.println("Unsupported code index version " + version + ": " + file.getPath());
+                return null;
+            }
+            int dimension = header.getInt();
+            int listCount = header.getInt();
+            int size = header.getInt();
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) listCount * (dimension + 1) * 4);
+            float[][] centroids = new float[listCount][dimension];
+            for (float[] centroid : centroids) {
+                table.asFloatBuffer().get(centroid);
+                table.position(table.position() + dimension * 4);
+            }
+
+            CodeIndex index = new CodeIndex(centroids);
+            long position = HEADER_SIZE + (long) listCount * (dimension + 1) * 4;
+            for (InvertedList list : index.lists) {
+                int listSize = table.getInt();
+                long bytes = (long) listSize * (dimension + 1) * 4;
+                if (bytes > Integer.MAX_VALUE) {
+                    throw new IOException("list of " + listSize + " codes is too large to map");
+                }
+                if (listSize > 0) {
+                    list.map(channel.map(FileChannel.MapMode.READ_ONLY, position, bytes), listSize);
+                }
+                position += bytes;
+            }
+            index.size = size;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read code index " + file.getPath() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * The codes of one list: a mapped part from the file and a heap part added
+     * since.
+     */
+    private static final class InvertedList {
+        IntBuffer mappedIds;
+        FloatBuffer mappedCodes;
+        int mappedSize;
+
+        int[] ids = new int[0];
+        float[] codes = new float[0];
+        int count;
+
+        int size() {
+            return mappedSize + count;
+        }
+
+        void add(int id, float[] code, int dimension) {
+            if (count == ids.length) {
+                int capacity = Math.max(16, 2 * ids.length);
+                int[] newIds = new int[capacity];
+                float[] newCodes = new float[capacity * dimension];
+                System.arraycopy(ids, 0, newIds, 0, count);
+                System.arraycopy(codes, 0, newCodes, 0, count * dimension);
+                ids = newIds;
+                codes = newCodes;
+            }
+            ids[count] = id;
+            System.arraycopy(code, 0, codes, count * dimension, dimension);
+            count++;
+        }
+
+        void map(ByteBuffer buffer, int size) {
+            buffer.limit(size * 4);
+            mappedIds = buffer.slice().asIntBuffer();
+            buffer.limit(buffer.capacity()).position(size * 4);
+            mappedCodes = buffer.slice().asFloatBuffer();
+            mappedSize = size;
+        }
+
+        void scan(float[] query, int dimension, TopK nearest) {
+            for (int i = 0; i < mappedSize; i++) {
+                nearest.offer(mappedIds.get(i), distance(query, mappedCodes, i * dimension, nearest.bound()));
+            }
+            for (int i = 0; i < count; i++) {
+                nearest.offer(ids[i], distance(query, codes, i * dimension, nearest.bound()));
+            }
+        }
+
+        void write(DataOutputStream out, int dimension) throws IOException {
+            for (int i = 0; i < mappedSize; i++) {
+                out.writeInt(mappedIds.get(i));
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(ids[i]);
+            }
+            for (int i = 0; i < mappedSize * dimension; i++) {
+                out.writeFloat(mappedCodes.get(i));
+            }
+            for (int i = 0; i < count * dimension; i++) {
+                out.writeFloat(codes[i]);
+            }
+        }
+    }
+
+    /**
+     * The k smallest distances offered, sorted.
+     */
+    private static final class TopK {
+        final int[] ids;
+        final float[] distances;
+        int count;
+
+        TopK(int k) {
+            ids = new int[k];
+            distances = new float[k];
+        }
+
+        float bound() {
+            return count < ids.length ? Float.MAX_VALUE : distances[count - 1];
+        }
+
+        void offer(int id, float distance) {
+            if (distance >= bound()) {
+                return;
+            }
+            int i = count < ids.length ? count++ : count - 1;
+            for (; i > 0 && distances[i - 1] > distance; i--) {
+                ids[i] = ids[i - 1];
+                distances[i] = distances[i - 1];
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+    }
+}
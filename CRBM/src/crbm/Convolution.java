@@ -0,0 +1,278 @@
+package crbm;
+
+import org.jblas.FloatMatrix;
+
+/**
+ * Convolution kernels used by the CRBM.
+ *
+ * The input patches are unrolled once into a patch matrix (im2col) so that
+ * all K feature maps of a layer are computed by a single mmul instead of
+ * rescanning the image once per filter. All matrices are column-major, so
+ * column k of a (rEdgeLength^2 x K) result is feature map k.
+ */
+public class Convolution {
+
+    /**
+     * Unrolls every filterEdgeLength x filterEdgeLength patch of the image into
+     * one row of the result. The result has (dataEdgeLength - filterEdgeLength + 1)^2
+     * rows and filterEdgeLength^2 columns.
+     */
+    public static FloatMatrix im2col(float[] data, int dataEdgeLength, int filterEdgeLength) {
+        return im2col(data, 1, dataEdgeLength, filterEdgeLength);
+    }
+
+    /**
+     * Unrolls a batch of images stored one after another in data. The rows of
+     * image i start at i * (dataEdgeLength - filterEdgeLength + 1)^2, so a
+     * single mmul computes the feature maps of the whole batch and
+     * cols^T * maps sums the gradients over the batch.
+     */
+    public static FloatMatrix im2col(float[] data, int batchSize, int dataEdgeLength, int filterEdgeLength) {
+        return im2col(data, batchSize, 1, dataEdgeLength, filterEdgeLength);
+    }
+
+    /**
+     * Unrolls a batch of tensors of channels maps each, stored as
+     * [image][channel][y][x]. The columns of channel c start at
+     * c * filterEdgeLength^2 like in {@link #im2col(float[][], int, int)}, so
+     * a single mmul with the filters of all channels stacked sums the
+     * convolutions over the channels.
+     */
+    public static FloatMatrix im2col(float[] data, int batchSize, int channels, int dataEdgeLength, int filterEdgeLength) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        int rSize = rEdgeLength * rEdgeLength;
+        FloatMatrix result = new FloatMatrix(batchSize * rSize, channels * filterEdgeLength * filterEdgeLength);
+
+        for (int i = 0; i < batchSize; i++) {
+            im2col(data, i * channels * dataEdgeLength * dataEdgeLength, channels, dataEdgeLength, filterEdgeLength, result.data, i * rSize, result.rows);
+        }
+        return result;
+    }
+
+    /**
+     * The same as im2col(data, batchSize, channels, dataEdgeLength,
+     * filterEdgeLength).mmul(W) through FFTs, which is faster for large
+     * filters and images, see {@link FFTConvolution}, and does not need the
+     * patch matrix.
+     */
+    public static FloatMatrix fft(float[] data, int batchSize, int channels, int dataEdgeLength, int filterEdgeLength, FloatMatrix W) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        FFTConvolution fft = new FFTConvolution(channels, W.columns, filterEdgeLength, dataEdgeLength, batchSize, false);
+        FloatMatrix result = new FloatMatrix(batchSize * rEdgeLength * rEdgeLength, W.columns);
+        fft.filters(W);
+        fft.hidden(data, batchSize, result);
+        return result;
+    }
+
+    /**
+     * Unrolls the patches of all maps next to each other, so the columns of
+     * map k start at k * filterEdgeLength^2. Multiplying the result with the
+     * stacked filters sums the convolutions over all maps.
+     */
+    public static FloatMatrix im2col(float[][] maps, int dataEdgeLength, int filterEdgeLength) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        FloatMatrix result = new FloatMatrix(rEdgeLength * rEdgeLength, maps.length * filterDimensions);
+
+        for (int k = 0; k < maps.length; k++) {
+            im2col(maps[k], 0, dataEdgeLength, filterEdgeLength, result.data, k * filterDimensions * result.rows, result.rows);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #im2col(float[][], int, int)} for maps stored as the
+     * columns of a matrix, e.g. the hidden layer of a CRBM.
+     */
+    public static FloatMatrix im2col(FloatMatrix maps, int dataEdgeLength, int filterEdgeLength) {
+        return im2col(maps, 1, dataEdgeLength, filterEdgeLength);
+    }
+
+    /**
+     * Batched version of {@link #im2col(FloatMatrix, int, int)}. Every column of
+     * maps holds one map of all batchSize images one after another.
+     */
+    public static FloatMatrix im2col(FloatMatrix maps, int batchSize, int dataEdgeLength, int filterEdgeLength) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        int rSize = rEdgeLength * rEdgeLength;
+        int dataSize = dataEdgeLength * dataEdgeLength;
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        FloatMatrix result = new FloatMatrix(batchSize * rSize, maps.columns * filterDimensions);
+
+        for (int k = 0; k < maps.columns; k++) {
+            for (int i = 0; i < batchSize; i++) {
+                im2col(maps.data, k * maps.rows + i * dataSize, dataEdgeLength, filterEdgeLength, result.data, k * filterDimensions * result.rows + i * rSize, result.rows);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One tensor of channels maps from dataOffset on.
+     */
+    static void im2col(float[] data, int dataOffset, int channels, int dataEdgeLength, int filterEdgeLength, float[] result, int resultOffset, int resultRows) {
+        int dataSize = dataEdgeLength * dataEdgeLength;
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        for (int c = 0; c < channels; c++) {
+            im2col(data, dataOffset + c * dataSize, dataEdgeLength, filterEdgeLength, result, resultOffset + c * filterDimensions * resultRows, resultRows);
+        }
+    }
+
+    static void im2col(float[] data, int dataOffset, int dataEdgeLength, int filterEdgeLength, float[] result, int resultOffset, int resultRows) {
+        final int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+
+        for (int yh = 0; yh < filterEdgeLength; yh++) {
+            for (int xh = 0; xh < filterEdgeLength; xh++) {
+                int column = resultOffset + (yh * filterEdgeLength + xh) * resultRows;
+                for (int y = 0; y < rEdgeLength; y++) {
+                    System.arraycopy(data, dataOffset + (y + yh) * dataEdgeLength + xh, result, column + y * rEdgeLength, rEdgeLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverses every filter (column) of W. Read as one column vector the result
+     * holds all flipped filters stacked, which matches the layout of
+     * {@link #im2col(FloatMatrix, int, int)}.
+     */
+    public static FloatMatrix flip(FloatMatrix W) {
+        return flip(W, new FloatMatrix(W.rows, W.columns));
+    }
+
+    public static FloatMatrix flip(FloatMatrix W, FloatMatrix result) {
+        for (int k = 0; k < W.columns; k++) {
+            int start = k * W.rows;
+            for (int i = 0; i < W.rows; i++) {
+                result.data[start + i] = W.data[start + W.rows - i - 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The flipped filters of a layer over channels input channels, for the
+     * reconstruction of the channels from the K hidden maps. W holds the
+     * filters of all channels of map k stacked in column k; column c of the
+     * result (K * filterDimensions x channels) holds the flipped filters of
+     * channel c of all K maps stacked, which matches the layout of
+     * {@link #im2col(FloatMatrix, int, int)}. For one channel the same as
+     * {@link #flip(FloatMatrix, FloatMatrix)}.
+     */
+    public static FloatMatrix flip(FloatMatrix W, int channels, FloatMatrix result) {
+        int filterDimensions = W.rows / channels;
+        for (int c = 0; c < channels; c++) {
+            for (int k = 0; k < W.columns; k++) {
+                int start = k * W.rows + c * filterDimensions;
+                int resultStart = c * result.rows + k * filterDimensions;
+                for (int i = 0; i < filterDimensions; i++) {
+                    result.data[resultStart + i] = W.data[start + filterDimensions - i - 1];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Mean over all channels. Filtering the mean is the same as filtering every
+     * channel with the same filter and normalizing the sum.
+     */
+    public static float[] average(float[][] data) {
+        float[] result = new float[data[0].length];
+
+        for (float[] dataK : data) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] += dataK[i];
+            }
+        }
+        for (int i = 0; i < result.length; i++) {
+            result[i] /= (float) data.length;
+        }
+        return result;
+    }
+
+    public static float[][] toMaps(FloatMatrix m) {
+        float[][] result = new float[m.columns][m.rows];
+
+        for (int k = 0; k < m.columns; k++) {
+            System.arraycopy(m.data, k * m.rows, result[k], 0, m.rows);
+        }
+        return result;
+    }
+
+    /**
+     * Reference implementation, one pass over the image per filter.
+     */
+    public static float[] filter(float[] data, float[] filter, int dataEdgeLength, int filterEdgeLength) {
+        int offset = filterEdgeLength - 1;
+        final int rEdgeLength = dataEdgeLength - offset;
+
+        float[] r = new float[rEdgeLength * rEdgeLength];
+
+        for (int y = 0; y < rEdgeLength; y++) {
+            for (int x = 0; x < rEdgeLength; x++) {
+
+                float sum = 0;
+                for (int yh = 0; yh < filterEdgeLength; yh++) {
+                    for (int xh = 0; xh < filterEdgeLength; xh++) {
+                        int pos = (y + yh) * dataEdgeLength + x + xh;
+                        sum += data[pos] * filter[yh * filterEdgeLength + xh];
+                    }
+                }
+
+                r[y * rEdgeLength + x] = sum;
+            }
+        }
+
+        return r;
+    }
+
+    /**
+     * Reference implementation of the multi-channel filter.
+     */
+    public static float[] filter(float[][] data, float[] filter, int dataEdgeLength, int filterEdgeLength, boolean normalize) {
+        int offset = filterEdgeLength - 1;
+        final int rEdgeLength = dataEdgeLength - offset;
+
+        float[] r = new float[rEdgeLength * rEdgeLength];
+
+        for (int y = 0; y < rEdgeLength; y++) {
+            for (int x = 0; x < rEdgeLength; x++) {
+
+                float sum = 0;
+                for (int yh = 0; yh < filterEdgeLength; yh++) {
+                    for (int xh = 0; xh < filterEdgeLength; xh++) {
+                        int pos = (y + yh) * dataEdgeLength + x + xh;
+                        int fPos = yh * filterEdgeLength + xh;
+                        for (float[] dataK : data) {
+                            sum += dataK[pos] * filter[fPos];
+                        }
+                    }
+                }
+                if(normalize) {
+                    sum /= (float)data.length;
+                }
+
+                r[y * rEdgeLength + x] = sum;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Reference implementation of a filter with its own kernel per channel,
+     * the convolutions of all channels summed.
+     */
+    public static float[] filter(float[][] data, float[][] filters, int dataEdgeLength, int filterEdgeLength) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        float[] r = new float[rEdgeLength * rEdgeLength];
+
+        for (int c = 0; c < data.length; c++) {
+            float[] channel = filter(data[c], filters[c], dataEdgeLength, filterEdgeLength);
+            for (int i = 0; i < r.length; i++) {
+                r[i] += channel[i];
+            }
+        }
+        return r;
+    }
+}
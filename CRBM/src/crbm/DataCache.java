@@ -0,0 +1,141 @@
+package crbm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary cache of a preprocessed image folder. The file holds a header with
+ * the preprocessing parameters and a fingerprint of the source folder, the
+ * labels and then the padded float data of all images. It is memory-mapped
+ * on load and ignored as soon as the folder or a parameter changes.
+ */
+public class DataCache {
+
+    private static final int MAGIC = 0x4352424D; // "CRBM"
+    private static final int VERSION = 2;
+
+    private static final int FLAG_RGB = 1;
+    private static final int FLAG_BINARIZE = 2;
+    private static final int FLAG_INVERT = 4;
+    // the scaling method is stored above the flags
+    private static final int SCALING_SHIFT = 8;
+
+    private final int edgeLength;
+    private final int padding;
+    private final int flags;
+    private final float minData;
+    private final float maxData;
+
+    public DataCache(int edgeLength, ImageScaler.Method scaling, int padding, boolean isRGB, boolean binarize, boolean invert, float minData, float maxData) {
+        this.edgeLength = edgeLength;
+        this.padding = padding;
+        this.flags = (isRGB ? FLAG_RGB : 0) | (binarize ? FLAG_BINARIZE : 0) | (invert ? FLAG_INVERT : 0)
+                | scaling.ordinal() << SCALING_SHIFT;
+        this.minData = minData;
+        this.maxData = maxData;
+    }
+
+    /**
+     * Fingerprint of the source images from their names, sizes and
+     * modification times.
+     */
+    public static long fingerprint(File[] files) {
+        long hash = 0xcbf29ce484222325L;
+        for (File file : files) {
+            hash = (hash ^ file.getName().hashCode()) * 0x100000001b3L;
+            hash = (hash ^ file.length()) * 0x100000001b3L;
+            hash = (hash ^ file.lastModified()) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the cached data, or null if there is no cache for this
+     * fingerprint and these parameters
+     */
+    public DataSet[] read(File cacheFile, long fingerprint) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != edgeLength || buffer.getInt() != padding || buffer.getInt() != flags
+                    || buffer.getFloat() != minData || buffer.getFloat() != maxData
+                    || buffer.getLong() != fingerprint) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int dataLength = buffer.getInt();
+
+            String[] labels = new String[count];
+            for (int i = 0; i < count; i++) {
+                byte[] label = new byte[buffer.getShort()];
+                buffer.get(label);
+                labels[i] = new String(label, StandardCharsets.UTF_8);
+            }
+
+            FloatBuffer floats = buffer.asFloatBuffer();
+            DataSet[] result = new DataSet[count];
+            for (int i = 0; i < count; i++) {
+                float[] data = new float[dataLength];
+                floats.get(data);
+                result[i] = new DataSet(data, labels[i]);
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read cache: " + cacheFile.getAbsolutePath());
+            return null;
+        }
+    }
+
+    /**
+     * Writes to a temporary file that replaces cacheFile once it is
+     * complete, so an interrupted write leaves the old cache or none.
+     */
+    public void write(File cacheFile, long fingerprint, DataSet[] data) throws IOException {
+        int dataLength = data.length == 0 ? 0 : data[0].getData().length;
+
+        File temp = new File(cacheFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(edgeLength);
+            out.writeInt(padding);
+            out.writeInt(flags);
+            out.writeFloat(minData);
+            out.writeFloat(maxData);
+            out.writeLong(fingerprint);
+            out.writeInt(data.length);
+            out.writeInt(dataLength);
+
+            for (DataSet ds : data) {
+                byte[] label = ds.getLabel().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(label.length);
+                out.write(label);
+            }
+
+            ByteBuffer floats = ByteBuffer.allocate(dataLength * 4);
+            for (DataSet ds : data) {
+                floats.clear();
+                floats.asFloatBuffer().put(ds.getData());
+                out.write(floats.array());
+            }
+        }
+        Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -13,11 +13,15 @@ import java.awt.image.BufferedImage;
 public class DataConverter {
 	
 	public static float[] processPixelData(BufferedImage image, int edgeLength, boolean binarize, boolean invert, float minData, float maxData, boolean isRgb) {
+		return processPixelData(image, edgeLength, ImageScaler.Method.AREA, binarize, invert, minData, maxData, isRgb);
+	}
+	
+	public static float[] processPixelData(BufferedImage image, int edgeLength, ImageScaler.Method scaling, boolean binarize, boolean invert, float minData, float maxData, boolean isRgb) {
 		float[] result;
 		if(isRgb) {
-			result = processPixelRGBData(image, edgeLength, binarize, invert, minData, maxData);
+			result = processPixelRGBData(image, edgeLength, scaling, binarize, invert, minData, maxData);
 		} else {
-			result = processPixelIntensityData(image, edgeLength, binarize, invert, minData, maxData);
+			result = processPixelIntensityData(image, edgeLength, scaling, binarize, invert, minData, maxData);
 		}
 		return result;
 	}
@@ -35,16 +39,17 @@ public class DataConverter {
 	}
 	
 	private static float[] processPixelIntensityData(float[] imageData, int edgeLength, boolean binarize, boolean invert, float minData, float maxData) {
-    	float[] data = new float[imageData.length];
+		return transformPixelData(imageData.clone(), binarize, invert, minData, maxData);
+	}
 
-        for (int i = 0; i < imageData.length; i++) {
-            
-            float intensity = imageData[i];
-            
-            if(invert) {
-            	intensity = 1.0f - intensity;
-            }
-            data[i] = intensity;
+	/**
+	 * Inverts, binarizes and scales to [minData, maxData] in place.
+	 */
+	private static float[] transformPixelData(float[] data, boolean binarize, boolean invert, float minData, float maxData) {
+        if(invert) {
+        	for (int i = 0; i < data.length; i++) {
+        		data[i] = 1.0f - data[i];
+        	}
         }
         
         if(binarize) {
@@ -59,25 +64,13 @@ public class DataConverter {
     	return data;
 	}
 	
-	private static float[] processPixelIntensityData(BufferedImage image, int edgeLength, boolean binarize, boolean invert, float minData, float maxData) {
+	private static float[] processPixelIntensityData(BufferedImage image, int edgeLength, ImageScaler.Method scaling, boolean binarize, boolean invert, float minData, float maxData) {
     	float[] data = new float[edgeLength * edgeLength];
 
         ImageScaler imageScaler = new ImageScaler(image);
-        BufferedImage scaledImage = imageScaler.scale(edgeLength);
-        int[] pixels = scaledImage.getRGB(0, 0, edgeLength, edgeLength, null, 0, edgeLength);
+        imageScaler.scaleIntensity(edgeLength, scaling, data);
 
-        for (int p = 0; p < pixels.length; p++) {
-            int argb = pixels[p];
-
-            int r = (argb >> 16) & 0xFF;
-            int g = (argb >> 8) & 0xFF;
-            int b = (argb) & 0xFF;
-            
-            float intensity = Math.max(0.0f, Math.min(1.0f, (float)(0.299 * r + 0.587 * g + 0.114 * b) / 255.0f));
-            data[p] = intensity;
-        }
-
-        return processPixelIntensityData(data, edgeLength, binarize, invert, minData, maxData);
+        return transformPixelData(data, binarize, invert, minData, maxData);
     }
 	
 //	private static float[] processPixelIntensityDataConvolutional(BufferedImage image, int edgeLength, boolean binarize, boolean invert, float minData, float maxData) {
@@ -102,28 +95,13 @@ public class DataConverter {
 //		return result;
 //	}
     
-	private static float[] processPixelRGBData(BufferedImage image, int edgeLength, boolean binarize, boolean invert, float minData, float maxData) {
+	private static float[] processPixelRGBData(BufferedImage image, int edgeLength, ImageScaler.Method scaling, boolean binarize, boolean invert, float minData, float maxData) {
     	float[] data = new float[edgeLength * edgeLength * 3];
 
         ImageScaler imageScaler = new ImageScaler(image);
-        BufferedImage scaledImage = imageScaler.scale(edgeLength);
-        int[] pixels = scaledImage.getRGB(0, 0, edgeLength, edgeLength, null, 0, edgeLength);
-
-        for (int p = 0; p < pixels.length; p++) {
-            int argb = pixels[p];
-
-            float r = ((argb >> 16) & 0xFF) / 255.0f;
-            float g = ((argb >> 8) & 0xFF) / 255.0f;
-            float b = ((argb) & 0xFF) / 255.0f;
-            
-            int pixel = p * 3;
-            
-            data[pixel] = r;
-            data[pixel + 1] = g;
-            data[pixel + 2] = b;
-        }
+        imageScaler.scaleRGB(edgeLength, scaling, data);
 
-        return processPixelIntensityData(data, edgeLength, binarize, invert, minData, maxData);
+        return transformPixelData(data, binarize, invert, minData, maxData);
     }
 	
 	private static BufferedImage pixelRGBDataToImage(float[] data, float minData) {
@@ -22,5 +22,19 @@ public class DefaultLogisticMatrixFunction extends MatrixFunctions implements IL
 			data[i] = 1.f / (float)( 1. + Math.exp(-data[i]) ); // 1 / (1 + e^-x) 
 		return m;
 	}
+
+	public void function(float[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++)
+			data[i] = 1.f / (float)( 1. + Math.exp(-data[i]) );
+	}
+
+	public float function(float[] data, int offset, int length, float bias) {
+		float sum = 0;
+		for (int i = offset; i < offset + length; i++) {
+			data[i] = 1.f / (float)( 1. + Math.exp(-(data[i] + bias)) );
+			sum += data[i];
+		}
+		return sum;
+	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,429 @@
+package crbm;
+
+import java.util.Arrays;
+import org.jblas.FloatMatrix;
+
+/**
+ * The convolutions of a CRBM layer through 2D FFTs, for large images and
+ * filters, where the patch matrix of im2col grows with filterEdgeLength^2.
+ * Every map is transformed once on an n x n grid, n the power of two that
+ * holds dataEdgeLength, and all K filters work on its spectrum. Real maps
+ * have Hermitian spectra, so only the n x (n / 2 + 1) half is stored and two
+ * rows go through one complex FFT.
+ *
+ * The spectra of all filters are computed once per batch by
+ * {@link #filters(FloatMatrix)} and serve the hidden activations and the
+ * reconstruction. In training the spectra of the input tensors are kept per
+ * image, so the gradient reuses them instead of transforming the batch
+ * again, and the gradients of the positive and the negative phase are summed
+ * over the batch in the frequency domain with one inverse FFT per filter.
+ *
+ * A spectrum is n row arrays, spectrum s in rows s * n to s * n + n - 1. The
+ * butterflies combine whole rows, of a spectrum or of a transposed scratch
+ * buffer, so the inner loops run over distinct arrays, which the JIT
+ * vectorizes, and the bit reversal only swaps row references.
+ *
+ * Writes the same layouts as the im2col path: column k of a (count *
+ * rEdgeLength^2 x K) matrix is map k. Not thread-safe, every worker needs
+ * its own instance.
+ */
+final class FFTConvolution {
+
+    // measured cost of a multiply-add in sgemm, of a butterfly with its
+    // share of the copies and of a complex multiply-add over the spectra,
+    // relative to each other
+    private static final float GEMM_COST = 1f;
+    private static final float BUTTERFLY_COST = 7f;
+    private static final float SPECTRUM_COST = 16f;
+    // edge of the tiles of the transposing copies
+    private static final int BLOCK = 16;
+
+    final int channels;
+    final int K;
+    final int filterEdgeLength;
+    final int dataEdgeLength;
+    final int rEdgeLength;
+    final int mEdgeLength;
+    // edge of the transforms and columns of a half spectrum
+    final int n;
+    final int h;
+
+    // cos and sin of 2 pi j / n, and the bit reversal permutation
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] reversed;
+
+    // filter (k, c) is spectrum k * channels + c
+    private final float[][] Wre;
+    private final float[][] Wim;
+    // channel c of image i of the last hidden call is spectrum i * channels
+    // + c if cached, all images share the spectra 0 .. channels - 1 otherwise
+    private final float[][] Vre;
+    private final float[][] Vim;
+    // the K maps of one image
+    private final float[][] Mre;
+    private final float[][] Mim;
+    // sum of products for one output map
+    private final float[][] Are;
+    private final float[][] Aim;
+    // gradient of filter (k, c) as spectrum k * channels + c, null if not
+    // training
+    private final float[][] Gre;
+    private final float[][] Gim;
+    // n x n / 2, row x holds position x of the row pairs of a map
+    private final float[][] Tre;
+    private final float[][] Tim;
+
+    private final boolean cached;
+
+    /**
+     * Buffers for batches of batchSize tensors. Only a training instance
+     * keeps the spectra of the batch and a gradient.
+     */
+    FFTConvolution(int channels, int K, int filterEdgeLength, int dataEdgeLength, int batchSize, boolean training) {
+        this.channels = channels;
+        this.K = K;
+        this.filterEdgeLength = filterEdgeLength;
+        this.dataEdgeLength = dataEdgeLength;
+        this.rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        this.mEdgeLength = dataEdgeLength - 2 * (filterEdgeLength - 1);
+        this.n = size(dataEdgeLength);
+        this.h = n / 2 + 1;
+        this.cached = training;
+
+        cos = new float[n / 2];
+        sin = new float[n / 2];
+        for (int j = 0; j < n / 2; j++) {
+            cos[j] = (float) Math.cos(2 * Math.PI * j / n);
+            sin[j] = (float) Math.sin(2 * Math.PI * j / n);
+        }
+        reversed = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        Wre = new float[K * channels * n][h];
+        Wim = new float[Wre.length][h];
+        Vre = new float[(training ? batchSize : 1) * channels * n][h];
+        Vim = new float[Vre.length][h];
+        Mre = new float[K * n][h];
+        Mim = new float[Mre.length][h];
+        Are = new float[n][h];
+        Aim = new float[n][h];
+        Gre = training ? new float[K * channels * n][h] : null;
+        Gim = training ? new float[K * channels * n][h] : null;
+        Tre = new float[n][n / 2];
+        Tim = new float[n][n / 2];
+    }
+
+    /**
+     * Edge of the transforms for maps of dataEdgeLength, at least 2.
+     */
+    static int size(int dataEdgeLength) {
+        return Integer.highestOneBit(Math.max(1, dataEdgeLength - 1)) << 1;
+    }
+
+    /**
+     * Whether the FFTs are expected to be cheaper than im2col and sgemm for
+     * the convolutions of a layer, from the operation counts of one image:
+     * the channels and the K maps are transformed once each, the spectra
+     * multiplied for every filter.
+     */
+    static boolean isFaster(int channels, int K, int filterEdgeLength, int dataEdgeLength) {
+        int rEdgeLength = dataEdgeLength - filterEdgeLength + 1;
+        int n = size(dataEdgeLength);
+        float gemm = GEMM_COST * rEdgeLength * rEdgeLength * channels * filterEdgeLength * filterEdgeLength * K;
+        // a real transform takes about n^2 log n / 2 butterflies
+        float transforms = BUTTERFLY_COST * (channels + K) * n * n * Integer.numberOfTrailingZeros(n) / 2f;
+        float products = SPECTRUM_COST * channels * K * n * (n / 2 + 1);
+        return transforms + products < gemm;
+    }
+
+    /**
+     * Transforms all filters of W, channels * filterEdgeLength^2 x K. Has
+     * to be called again after W changed.
+     */
+    void filters(FloatMatrix W) {
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        for (int k = 0; k < K; k++) {
+            for (int c = 0; c < channels; c++) {
+                forward(W.data, k * W.rows + c * filterDimensions, filterEdgeLength, Wre, Wim, k * channels + c);
+            }
+        }
+    }
+
+    /**
+     * Bottom-up activations of count tensors from V, without bias, into the
+     * first count * rEdgeLength^2 rows of result. In training the spectra of
+     * the tensors are kept for {@link #accumulate(FloatMatrix, int, boolean)}.
+     */
+    void hidden(float[] V, int count, FloatMatrix result) {
+        int dataSize = dataEdgeLength * dataEdgeLength;
+        int rSize = rEdgeLength * rEdgeLength;
+
+        for (int i = 0; i < count; i++) {
+            int tensor = (cached ? i : 0) * channels;
+            for (int c = 0; c < channels; c++) {
+                forward(V, (i * channels + c) * dataSize, dataEdgeLength, Vre, Vim, tensor + c);
+            }
+
+            // correlation: the sum over the channels of V_c * conj(W_kc)
+            for (int k = 0; k < K; k++) {
+                clear(Are, Aim, 0);
+                for (int c = 0; c < channels; c++) {
+                    multiplyAdd(Vre, Vim, tensor + c, Wre, Wim, k * channels + c, true, 1f, Are, Aim, 0);
+                }
+                inverse(Are, Aim, 0, 0, 0, rEdgeLength, result.data, k * result.rows + i * rSize);
+            }
+        }
+    }
+
+    /**
+     * The reconstructed inner part of every channel from count images of the
+     * K maps in H, before bias, into the first count * mEdgeLength^2 rows of
+     * result, column c for channel c. Convolves with the filters themselves,
+     * so the flipped filters of the im2col path are not needed.
+     */
+    void visible(FloatMatrix H, int count, FloatMatrix result) {
+        int rSize = rEdgeLength * rEdgeLength;
+        int mSize = mEdgeLength * mEdgeLength;
+        int offset = filterEdgeLength - 1;
+
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < K; k++) {
+                forward(H.data, k * H.rows + i * rSize, rEdgeLength, Mre, Mim, k);
+            }
+
+            for (int c = 0; c < channels; c++) {
+                clear(Are, Aim, 0);
+                for (int k = 0; k < K; k++) {
+                    multiplyAdd(Mre, Mim, k, Wre, Wim, k * channels + c, false, 1f, Are, Aim, 0);
+                }
+                inverse(Are, Aim, 0, offset, offset, mEdgeLength, result.data, c * result.rows + i * mSize);
+            }
+        }
+    }
+
+    /**
+     * Adds the correlations of the tensors of the last hidden call with the
+     * K maps of count images in P to the gradient, subtracts them for the
+     * negative phase. Training instances only.
+     */
+    void accumulate(FloatMatrix P, int count, boolean positive) {
+        int rSize = rEdgeLength * rEdgeLength;
+        float sign = positive ? 1f : -1f;
+
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < K; k++) {
+                forward(P.data, k * P.rows + i * rSize, rEdgeLength, Mre, Mim, k);
+            }
+            for (int k = 0; k < K; k++) {
+                for (int c = 0; c < channels; c++) {
+                    multiplyAdd(Vre, Vim, i * channels + c, Mre, Mim, k, true, sign, Gre, Gim, k * channels + c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the accumulated gradient into result, channels *
+     * filterEdgeLength^2 x K like W, and clears it.
+     */
+    void gradient(FloatMatrix result) {
+        int filterDimensions = filterEdgeLength * filterEdgeLength;
+        for (int k = 0; k < K; k++) {
+            for (int c = 0; c < channels; c++) {
+                inverse(Gre, Gim, k * channels + c, 0, 0, filterEdgeLength, result.data, k * result.rows + c * filterDimensions);
+                clear(Gre, Gim, k * channels + c);
+            }
+        }
+    }
+
+    private void clear(float[][] re, float[][] im, int s) {
+        for (int u = s * n; u < (s + 1) * n; u++) {
+            Arrays.fill(re[u], 0f);
+            Arrays.fill(im[u], 0f);
+        }
+    }
+
+    /**
+     * Spectrum r += sign * a * b of the spectra a and b, or sign * a *
+     * conj(b).
+     */
+    private void multiplyAdd(float[][] aRe, float[][] aIm, int a, float[][] bRe, float[][] bIm, int b, boolean conjugate,
+                             float sign, float[][] rRe, float[][] rIm, int r) {
+        float s = conjugate ? -sign : sign;
+        for (int u = 0; u < n; u++) {
+            float[] ar = aRe[a * n + u];
+            float[] ai = aIm[a * n + u];
+            float[] br = bRe[b * n + u];
+            float[] bi = bIm[b * n + u];
+            float[] rr = rRe[r * n + u];
+            float[] ri = rIm[r * n + u];
+            for (int v = 0; v < h; v++) {
+                float xr = sign * br[v];
+                float xi = s * bi[v];
+                rr[v] += ar[v] * xr - ai[v] * xi;
+                ri[v] += ar[v] * xi + ai[v] * xr;
+            }
+        }
+    }
+
+    /**
+     * Spectrum s of re and im from the edge x edge map at
+     * source[sourceOffset], zero padded to n x n.
+     */
+    private void forward(float[] source, int sourceOffset, int edge, float[][] re, float[][] im, int s) {
+        int pairs = (edge + 1) / 2;
+
+        // along x, two rows at a time: column p of T is row 2p + i row 2p + 1,
+        // copied in blocks that stay in the cache
+        for (int x = edge; x < n; x++) {
+            Arrays.fill(Tre[x], 0, pairs, 0f);
+            Arrays.fill(Tim[x], 0, pairs, 0f);
+        }
+        for (int p0 = 0; p0 < pairs; p0 += BLOCK) {
+            int p1 = Math.min(p0 + BLOCK, pairs);
+            for (int x0 = 0; x0 < edge; x0 += BLOCK) {
+                int x1 = Math.min(x0 + BLOCK, edge);
+                for (int p = p0; p < p1; p++) {
+                    int even = sourceOffset + 2 * p * edge;
+                    boolean odd = 2 * p + 1 < edge;
+                    for (int x = x0; x < x1; x++) {
+                        Tre[x][p] = source[even + x];
+                        Tim[x][p] = odd ? source[even + edge + x] : 0f;
+                    }
+                }
+            }
+        }
+        transform(Tre, Tim, 0, pairs, false);
+
+        // Z = A + iB with A and B Hermitian: A = (Z + conj Z(-v)) / 2 and
+        // B = (Z - conj Z(-v)) / 2i
+        int base = s * n;
+        for (int v0 = 0; v0 < h; v0 += BLOCK) {
+            int v1 = Math.min(v0 + BLOCK, h);
+            for (int p0 = 0; p0 < pairs; p0 += BLOCK) {
+                int p1 = Math.min(p0 + BLOCK, pairs);
+                for (int p = p0; p < p1; p++) {
+                    float[] ar = re[base + 2 * p];
+                    float[] ai = im[base + 2 * p];
+                    float[] br = 2 * p + 1 < edge ? re[base + 2 * p + 1] : null;
+                    float[] bi = 2 * p + 1 < edge ? im[base + 2 * p + 1] : null;
+                    for (int v = v0; v < v1; v++) {
+                        float zr = Tre[v][p];
+                        float zi = Tim[v][p];
+                        float cr = Tre[(n - v) & (n - 1)][p];
+                        float ci = Tim[(n - v) & (n - 1)][p];
+                        ar[v] = (zr + cr) * 0.5f;
+                        ai[v] = (zi - ci) * 0.5f;
+                        if (br != null) {
+                            br[v] = (zi + ci) * 0.5f;
+                            bi[v] = (cr - zr) * 0.5f;
+                        }
+                    }
+                }
+            }
+        }
+        for (int y = edge; y < n; y++) {
+            Arrays.fill(re[base + y], 0f);
+            Arrays.fill(im[base + y], 0f);
+        }
+
+        // along y
+        transform(re, im, base, h, false);
+    }
+
+    /**
+     * The edge x edge window at (y0, x0) of the real map of spectrum s,
+     * scaled, to result[resultOffset]. Overwrites the spectrum.
+     */
+    private void inverse(float[][] re, float[][] im, int s, int y0, int x0, int edge, float[] result, int resultOffset) {
+        int base = s * n;
+        transform(re, im, base, h, true);
+
+        // along x, two rows of the window at a time: Z = X + iY of the full
+        // Hermitian rows X and Y goes back to x + iy
+        int pairs = (edge + 1) / 2;
+        for (int p0 = 0; p0 < pairs; p0 += BLOCK) {
+            int p1 = Math.min(p0 + BLOCK, pairs);
+            for (int v0 = 0; v0 < n; v0 += BLOCK) {
+                int v1 = Math.min(v0 + BLOCK, n);
+                for (int p = p0; p < p1; p++) {
+                    float[] xr = re[base + y0 + 2 * p];
+                    float[] xi = im[base + y0 + 2 * p];
+                    float[] yr = 2 * p + 1 < edge ? re[base + y0 + 2 * p + 1] : null;
+                    float[] yi = 2 * p + 1 < edge ? im[base + y0 + 2 * p + 1] : null;
+                    for (int v = v0; v < v1; v++) {
+                        int j = v < h ? v : n - v;
+                        float conjugate = v < h ? 1f : -1f;
+                        Tre[v][p] = xr[j] - (yi != null ? conjugate * yi[j] : 0f);
+                        Tim[v][p] = conjugate * xi[j] + (yr != null ? yr[j] : 0f);
+                    }
+                }
+            }
+        }
+        transform(Tre, Tim, 0, pairs, true);
+
+        float scale = 1f / ((float) n * n);
+        for (int p0 = 0; p0 < pairs; p0 += BLOCK) {
+            int p1 = Math.min(p0 + BLOCK, pairs);
+            for (int b0 = 0; b0 < edge; b0 += BLOCK) {
+                int b1 = Math.min(b0 + BLOCK, edge);
+                for (int p = p0; p < p1; p++) {
+                    int even = resultOffset + 2 * p * edge;
+                    boolean odd = 2 * p + 1 < edge;
+                    for (int x = b0; x < b1; x++) {
+                        result[even + x] = Tre[x0 + x][p] * scale;
+                        if (odd) {
+                            result[even + edge + x] = Tim[x0 + x][p] * scale;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * In-place radix-2 FFT, unscaled, over the n rows from base on, of the
+     * first length elements of every row.
+     */
+    private void transform(float[][] re, float[][] im, int base, int length, boolean inverse) {
+        for (int u = 0; u < n; u++) {
+            int j = reversed[u];
+            if (u < j) {
+                float[] t = re[base + u];
+                re[base + u] = re[base + j];
+                re[base + j] = t;
+                t = im[base + u];
+                im[base + u] = im[base + j];
+                im[base + j] = t;
+            }
+        }
+
+        float direction = inverse ? 1f : -1f;
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int j = 0; j < half; j++) {
+                float wr = cos[j * step];
+                float wi = direction * sin[j * step];
+                for (int a = base + j; a < base + n; a += size) {
+                    butterfly(re[a], im[a], re[a + half], im[a + half], length, wr, wi);
+                }
+            }
+        }
+    }
+
+    private static void butterfly(float[] aRe, float[] aIm, float[] bRe, float[] bIm, int length, float wr, float wi) {
+        for (int v = 0; v < length; v++) {
+            float tr = bRe[v] * wr - bIm[v] * wi;
+            float ti = bRe[v] * wi + bIm[v] * wr;
+            bRe[v] = aRe[v] - tr;
+            bIm[v] = aIm[v] - ti;
+            aRe[v] += tr;
+            aIm[v] += ti;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package crbm;
+
+import crbm.rbm.IRBM;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trained stack for inference: the CRBM layers with max pooling, the RBM on
+ * top and the cluster centers of its codes. Encodes whole batches at once
+ * through a {@link LayerStack.Plan}, so every layer runs one convolution and
+ * one mmul per batch in buffers allocated once. Encodes like the test data
+ * in {@link Trainer}, but returns probabilities instead of sampled states.
+ */
+public class FeatureStack {
+
+    private final LayerStack layers;
+    private final IRBM rbm;
+    private final CentroidClassifier classifier;
+
+    // grows to the largest batch
+    private LayerStack.Plan plan;
+
+    public FeatureStack(LayerStack layers, IRBM rbm, List<Cluster> clusters) {
+        this.layers = layers;
+        this.rbm = rbm;
+        this.classifier = clusters != null ? new CentroidClassifier(clusters) : null;
+    }
+
+    /**
+     * Returns null unless the file holds a complete, clustered checkpoint.
+     */
+    public static FeatureStack load(File file) {
+        Checkpoint checkpoint = Checkpoint.read(file);
+        if (checkpoint == null || !checkpoint.isComplete() || checkpoint.getClusters() == null) {
+            System.out.println("No trained stack in " + file.getPath());
+            return null;
+        }
+
+        int[] dataEdgeLengths = checkpoint.getDataEdgeLengths();
+        LayerStack layers = new LayerStack(checkpoint.getCRBMs(), dataEdgeLengths[0], checkpoint.getPoolingSizes());
+        if (!Arrays.equals(layers.getDataEdgeLengths(), dataEdgeLengths)) {
+            System.out.println("The layers in " + file.getPath() + " do not fit together: " + Arrays.toString(dataEdgeLengths));
+            return null;
+        }
+        return new FeatureStack(layers, checkpoint.getRBM(), checkpoint.getClusters());
+    }
+
+    /**
+     * Edge length of the images, after preprocessing.
+     */
+    public int getDataEdgeLength() {
+        return layers.getDataEdgeLength();
+    }
+
+    /**
+     * Encodes the batch in the buffers of the last call, so concurrent calls
+     * wait for each other.
+     */
+    public synchronized float[][] encode(float[][] images) {
+        if (plan == null || plan.getBatchSize() < images.length) {
+            plan = layers.plan(images.length);
+        }
+
+        float[][] rbmData = new float[images.length][];
+        plan.run(images, 0, images.length);
+        plan.getOutput(rbmData, 0);
+        return rbm.getHidden(rbmData, false);
+    }
+
+    /**
+     * Label of the cluster with the nearest center.
+     */
+    public String nearestLabel(float[] code) {
+        return classifier.nearestLabel(code);
+    }
+
+    /**
+     * Labels of the clusters with the nearest centers, of all codes at once.
+     */
+    public String[] nearestLabels(float[][] codes) {
+        return classifier.nearestLabels(codes);
+    }
+}
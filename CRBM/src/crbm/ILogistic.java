@@ -5,5 +5,15 @@ import org.jblas.FloatMatrix;
 public interface ILogistic {
 
 	public FloatMatrix function(FloatMatrix m);
+
+	/**
+	 * In place on data[offset] .. data[offset + length - 1].
+	 */
+	public void function(float[] data, int offset, int length);
+
+	/**
+	 * Same with bias added to every element first, in the same pass. Returns
+	 * the sum of the results, e.g. for the gradient of the bias.
+	 */
+	public float function(float[] data, int offset, int length, float bias);
 }
- 
\ No newline at end of file
@@ -0,0 +1,228 @@
+package crbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Images and labels in the IDX format of the MNIST distribution
+ * (train-images-idx3-ubyte, train-labels-idx1-ubyte), memory-mapped. The
+ * bytes are ink, 0 for the background and 255 for the digits, so without
+ * invert the digits come out bright. They are converted to floats only when
+ * images are read, through a table that applies invert and the scale to
+ * [minData, maxData] like DataConverter, and padded like Main. The images keep their size, there is
+ * no scaling. The files have to be decompressed.
+ *
+ * Reading is thread-safe.
+ */
+public class IdxDataSet {
+
+    private static final int TYPE_UNSIGNED_BYTE = 0x08;
+
+    private final ByteBuffer images;
+    private final ByteBuffer labels;
+    private final int count;
+    private final int rows;
+    private final int columns;
+    private final int padding;
+    private final boolean binarize;
+    private final boolean invert;
+    private final float minData;
+    private final float maxData;
+    // the preprocessed value of every byte
+    private final float[] table = new float[256];
+
+    private IdxDataSet(ByteBuffer images, ByteBuffer labels, int count, int rows, int columns,
+                       int padding, boolean binarize, boolean invert, float minData, float maxData) {
+        this.images = images;
+        this.labels = labels;
+        this.count = count;
+        this.rows = rows;
+        this.columns = columns;
+        this.padding = padding;
+        this.binarize = binarize;
+        this.invert = invert;
+        this.minData = minData;
+        this.maxData = maxData;
+
+        for (int v = 0; v < 256; v++) {
+            float intensity = v / 255.0f;
+            if (invert) {
+                intensity = 1.0f - intensity;
+            }
+            table[v] = minData + intensity * (maxData - minData);
+        }
+    }
+
+    /**
+     * Maps an image file and its label file, labels may be null. Binarized
+     * images are thresholded per image by DataConverter.
+     */
+    public static IdxDataSet open(File imageFile, File labelFile, int padding, boolean binarize, boolean invert, float minData, float maxData) throws IOException {
+        ByteBuffer images = map(imageFile, 3);
+        int count = images.getInt(4);
+        int rows = images.getInt(8);
+        int columns = images.getInt(12);
+        if ((long) count * rows * columns > images.capacity() - 16) {
+            throw new IOException("IDX file is truncated: " + imageFile.getAbsolutePath());
+        }
+
+        ByteBuffer labels = null;
+        if (labelFile != null) {
+            labels = map(labelFile, 1);
+            if (labels.getInt(4) != count || labels.capacity() - 8 < count) {
+                throw new IOException(labelFile.getAbsolutePath() + " does not hold " + count + " labels");
+            }
+        }
+
+        return new IdxDataSet(images, labels, count, rows, columns, padding, binarize, invert, minData, maxData);
+    }
+
+    /**
+     * The label file next to an image file of the MNIST distribution, e.g.
+     * train-labels-idx1-ubyte for train-images-idx3-ubyte, or null.
+     */
+    public static File labelFile(File imageFile) {
+        File file = new File(imageFile.getParentFile(), imageFile.getName().replace("images-idx3", "labels-idx1"));
+        return file.isFile() && !file.equals(imageFile) ? file : null;
+    }
+
+    /**
+     * The whole file, read-only, after checking the magic number of unsigned
+     * bytes in dimensions dimensions.
+     */
+    private static ByteBuffer map(File file, int dimensions) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("IDX file is too large to map: " + file.getAbsolutePath());
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < 4 + dimensions * 4 || buffer.getShort(0) != 0
+                    || buffer.get(2) != TYPE_UNSIGNED_BYTE || buffer.get(3) != dimensions) {
+                throw new IOException("Not an IDX file of unsigned bytes in " + dimensions + " dimensions: " + file.getAbsolutePath());
+            }
+            return buffer;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Length of a padded image.
+     */
+    public int getRecordLength() {
+        return (rows + 2 * padding) * (columns + 2 * padding);
+    }
+
+    /**
+     * The label digits as strings, like the file names of the PNG folders,
+     * or null without a label file.
+     */
+    public String getLabel(int index) {
+        return labels == null ? null : String.valueOf(labels.get(8 + index) & 0xFF);
+    }
+
+    /**
+     * Writes the padded image to dest from destOffset on.
+     */
+    public void get(int index, float[] dest, int destOffset) {
+        byte[] bytes = read(index, 1, new byte[rows * columns]);
+        convert(bytes, 0, dest, destOffset);
+    }
+
+    public float[] getData(int index) {
+        float[] result = new float[getRecordLength()];
+        get(index, result, 0);
+        return result;
+    }
+
+    /**
+     * count images from start on, read with one bulk copy.
+     */
+    public float[][] getData(int start, int count) {
+        int imageSize = rows * columns;
+        byte[] bytes = read(start, count, new byte[count * imageSize]);
+
+        float[][] result = new float[count][getRecordLength()];
+        for (int i = 0; i < count; i++) {
+            convert(bytes, i * imageSize, result[i], 0);
+        }
+        return result;
+    }
+
+    public DataSet getDataSet(int index) {
+        return new DataSet(getData(index), getLabel(index));
+    }
+
+    /**
+     * All images converted, batchSize images per bulk copy.
+     */
+    public DataSet[] toDataSets(int batchSize) {
+        int imageSize = rows * columns;
+        byte[] bytes = new byte[batchSize * imageSize];
+
+        DataSet[] result = new DataSet[count];
+        for (int start = 0; start < count; start += batchSize) {
+            int batch = Math.min(batchSize, count - start);
+            read(start, batch, bytes);
+            for (int i = 0; i < batch; i++) {
+                float[] data = new float[getRecordLength()];
+                convert(bytes, i * imageSize, data, 0);
+                result[start + i] = new DataSet(data, getLabel(start + i));
+            }
+        }
+        return result;
+    }
+
+    private byte[] read(int start, int count, byte[] bytes) {
+        int imageSize = rows * columns;
+        // a duplicate has its own position, the mapping is shared
+        ByteBuffer source = images.duplicate();
+        source.position(16 + start * imageSize);
+        source.get(bytes, 0, count * imageSize);
+        return bytes;
+    }
+
+    /**
+     * One image from bytes at offset to dest at destOffset, padded.
+     */
+    private void convert(byte[] bytes, int offset, float[] dest, int destOffset) {
+        int paddedColumns = columns + 2 * padding;
+        Arrays.fill(dest, destOffset, destOffset + getRecordLength(), 0.0f);
+
+        if (binarize) {
+            // the threshold depends on the whole image
+            float[] intensities = new float[rows * columns];
+            for (int p = 0; p < intensities.length; p++) {
+                intensities[p] = (bytes[offset + p] & 0xFF) / 255.0f;
+            }
+            float[] processed = DataConverter.processPixelData(intensities, columns, binarize, invert, minData, maxData, false);
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(processed, y * columns, dest, destOffset + (y + padding) * paddedColumns + padding, columns);
+            }
+            return;
+        }
+
+        for (int y = 0; y < rows; y++) {
+            int row = offset + y * columns;
+            int target = destOffset + (y + padding) * paddedColumns + padding;
+            for (int x = 0; x < columns; x++) {
+                dest[target + x] = table[bytes[row + x] & 0xFF];
+            }
+        }
+    }
+}
@@ -3,11 +3,39 @@ package crbm;
 import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Scales images to a square edge length like getScaledInstance with
+ * SCALE_SMOOTH drawn on a TYPE_INT_RGB image, but on arrays: the source
+ * rows are read from the raster's DataBuffer and the result is written to
+ * a float array, intensities or interleaved RGB in [0, 1]. Translucent
+ * pixels are drawn over black like drawImage does. Images without a known
+ * raster layout are read with getRGB row by row.
+ *
+ * The AWT path, scale, stays for comparison.
+ */
 public class ImageScaler {
 	
+	public enum Method {
+		// the mean of the covered source area, what SCALE_SMOOTH does
+		AREA,
+		// interpolated between the four nearest pixel centers
+		BILINEAR,
+		NEAREST_NEIGHBOUR
+	}
+
 	private BufferedImage	orgImage;
-	private int[] 			orgImagePixels;	
 	private int 			orgWidth, orgHeight;
 	
 	public ImageScaler() {
@@ -16,7 +44,6 @@ public class ImageScaler {
 	
 	public ImageScaler(BufferedImage image) {
 			this.orgImage 				= image;			
-			this.orgImagePixels 		= getPixelsFromBufferedImage(orgImage);
 			this.orgWidth 				= orgImage.getWidth();
 			this.orgHeight 				= orgImage.getHeight();			
 	}
@@ -24,6 +51,329 @@ public class ImageScaler {
 	public BufferedImage scale(int longestEdge) {
 		return getScaledImage(longestEdge);
 	}
+
+	/**
+	 * Writes the edgeLength x edgeLength intensities 0.299 r + 0.587 g +
+	 * 0.114 b to result, row by row.
+	 */
+	public void scaleIntensity(int edgeLength, Method method, float[] result) {
+		scale(edgeLength, method, 1, result);
+	}
+
+	/**
+	 * Writes the edgeLength x edgeLength pixels to result as r, g, b.
+	 */
+	public void scaleRGB(int edgeLength, Method method, float[] result) {
+		scale(edgeLength, method, 3, result);
+	}
+
+	private void scale(int edgeLength, Method method, int channels, float[] result) {
+		RowReader reader = new RowReader(orgImage, channels);
+		switch (method) {
+			case AREA:
+				scaleArea(reader, edgeLength, edgeLength, channels, result);
+				break;
+			case BILINEAR:
+				scaleBilinear(reader, edgeLength, edgeLength, channels, result);
+				break;
+			default:
+				scaleNearestNeighbour(reader, edgeLength, edgeLength, channels, result);
+		}
+
+		for (int i = 0; i < edgeLength * edgeLength * channels; i++) {
+			result[i] = Math.max(0.0f, Math.min(1.0f, result[i] / 255.0f));
+		}
+	}
+
+	/**
+	 * Separable box filter: every source row is averaged horizontally once
+	 * and added to the destination rows it overlaps. In units of width *
+	 * newWidth, source pixel i covers [i * newWidth, (i + 1) * newWidth) and
+	 * destination pixel x covers [x * width, (x + 1) * width), the weight of
+	 * a source pixel is the overlap over width.
+	 */
+	private void scaleArea(RowReader reader, int newWidth, int newHeight, int channels, float[] result) {
+		int[] xStart = new int[newWidth];
+		float[][] xWeights = areaWeights(orgWidth, newWidth, xStart);
+		int[] yStart = new int[newHeight];
+		float[][] yWeights = areaWeights(orgHeight, newHeight, yStart);
+
+		float[] row = new float[orgWidth * channels];
+		float[] averaged = new float[newWidth * channels];
+		Arrays.fill(result, 0, newWidth * newHeight * channels, 0.0f);
+
+		int firstRow = 0;
+		for (int y = 0; y < orgHeight; y++) {
+			reader.read(y, row);
+
+			for (int x = 0; x < newWidth; x++) {
+				float[] weights = xWeights[x];
+				int source = xStart[x] * channels;
+				for (int c = 0; c < channels; c++) {
+					float sum = 0.0f;
+					for (int i = 0; i < weights.length; i++) {
+						sum += weights[i] * row[source + i * channels + c];
+					}
+					averaged[x * channels + c] = sum;
+				}
+			}
+
+			// destination rows are in order of their source rows
+			while (yStart[firstRow] + yWeights[firstRow].length <= y) {
+				firstRow++;
+			}
+			for (int newY = firstRow; newY < newHeight && yStart[newY] <= y; newY++) {
+				float weight = yWeights[newY][y - yStart[newY]];
+				int offset = newY * newWidth * channels;
+				for (int i = 0; i < averaged.length; i++) {
+					result[offset + i] += weight * averaged[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * The weights of the source pixels from start[x] on for every
+	 * destination pixel x, they sum to 1.
+	 */
+	private static float[][] areaWeights(int size, int newSize, int[] start) {
+		float[][] weights = new float[newSize][];
+		for (int x = 0; x < newSize; x++) {
+			long from = (long) x * size;
+			long to = from + size;
+			int first = (int) (from / newSize);
+			int last = (int) ((to - 1) / newSize);
+
+			start[x] = first;
+			weights[x] = new float[last - first + 1];
+			for (int i = first; i <= last; i++) {
+				long overlap = Math.min(to, (long) (i + 1) * newSize) - Math.max(from, (long) i * newSize);
+				weights[x][i - first] = (float) overlap / size;
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Pixel centers are aligned, edge pixels are repeated. Reads each source
+	 * row at most once.
+	 */
+	private void scaleBilinear(RowReader reader, int newWidth, int newHeight, int channels, float[] result) {
+		int[] x0 = new int[newWidth];
+		float[] xFraction = new float[newWidth];
+		for (int x = 0; x < newWidth; x++) {
+			float position = Math.max(0.0f, (x + 0.5f) * orgWidth / newWidth - 0.5f);
+			x0[x] = Math.min((int) position, orgWidth - 1);
+			xFraction[x] = x0[x] < orgWidth - 1 ? position - x0[x] : 0.0f;
+		}
+
+		float[] upper = new float[orgWidth * channels];
+		float[] lower = new float[orgWidth * channels];
+		int upperY = -1;
+		int lowerY = -1;
+
+		for (int y = 0, pos = 0; y < newHeight; y++) {
+			float position = Math.max(0.0f, (y + 0.5f) * orgHeight / newHeight - 0.5f);
+			int y0 = Math.min((int) position, orgHeight - 1);
+			int y1 = Math.min(y0 + 1, orgHeight - 1);
+			float yFraction = position - y0;
+
+			if (y0 != upperY) {
+				if (y0 == lowerY) {
+					float[] swap = upper;
+					upper = lower;
+					lower = swap;
+					lowerY = -1;
+				} else {
+					reader.read(y0, upper);
+				}
+				upperY = y0;
+			}
+			if (y1 != lowerY) {
+				reader.read(y1, lower);
+				lowerY = y1;
+			}
+
+			for (int x = 0; x < newWidth; x++) {
+				int left = x0[x] * channels;
+				int right = left + (xFraction[x] > 0.0f ? channels : 0);
+				float f = xFraction[x];
+				for (int c = 0; c < channels; c++, pos++) {
+					float top = upper[left + c] + f * (upper[right + c] - upper[left + c]);
+					float bottom = lower[left + c] + f * (lower[right + c] - lower[left + c]);
+					result[pos] = top + yFraction * (bottom - top);
+				}
+			}
+		}
+	}
+
+	private void scaleNearestNeighbour(RowReader reader, int newWidth, int newHeight, int channels, float[] result) {
+		double x_ratio = orgWidth / (double) newWidth;
+		double y_ratio = orgHeight / (double) newHeight;
+
+		float[] row = new float[orgWidth * channels];
+		int rowY = -1;
+
+		for (int y = 0, pos = 0; y < newHeight; y++) {
+			int py = (int) Math.floor(y * y_ratio);
+			if (py != rowY) {
+				reader.read(py, row);
+				rowY = py;
+			}
+			for (int x = 0; x < newWidth; x++) {
+				int px = (int) Math.floor(x * x_ratio);
+				for (int c = 0; c < channels; c++, pos++) {
+					result[pos] = row[px * channels + c];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a row of the image as intensities or r, g, b in [0, 255]. Gray
+	 * and indexed bytes go through a table of their color model, so they
+	 * match getRGB.
+	 */
+	private static final class RowReader {
+		// getRGB of a gray color model converts to sRGB on every call, equal
+		// models of different images share a table
+		private static final Map<ColorModel, int[]> grayTables = Collections.synchronizedMap(new WeakHashMap<ColorModel, int[]>());
+
+		private final BufferedImage image;
+		private final int channels;
+		private final int width;
+
+		private byte[] bytes;
+		private int[] ints;
+		private int offset;
+		private int scanlineStride;
+		private int pixelStride;
+		// of r, g, b and alpha, -1 without alpha
+		private int[] bandOffsets;
+		// ARGB of every byte value
+		private int[] table;
+		private boolean hasAlpha;
+		private int[] argb;
+
+		RowReader(BufferedImage image, int channels) {
+			this.image = image;
+			this.channels = channels;
+			this.width = image.getWidth();
+
+			WritableRaster raster = image.getRaster();
+			ColorModel colorModel = image.getColorModel();
+			int x = -raster.getSampleModelTranslateX();
+			int y = -raster.getSampleModelTranslateY();
+
+			switch (image.getType()) {
+				case BufferedImage.TYPE_BYTE_GRAY:
+				case BufferedImage.TYPE_BYTE_INDEXED:
+				case BufferedImage.TYPE_3BYTE_BGR:
+				case BufferedImage.TYPE_4BYTE_ABGR: {
+					ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+					bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+					scanlineStride = sampleModel.getScanlineStride();
+					pixelStride = sampleModel.getPixelStride();
+					int[] offsets = sampleModel.getBandOffsets();
+					offset = raster.getDataBuffer().getOffset() + y * scanlineStride + x * pixelStride;
+
+					if (offsets.length == 1) {
+						table = table(colorModel);
+						hasAlpha = colorModel.hasAlpha();
+						bandOffsets = new int[] {offsets[0]};
+					} else {
+						hasAlpha = offsets.length == 4;
+						bandOffsets = new int[] {offsets[0], offsets[1], offsets[2], hasAlpha ? offsets[3] : -1};
+					}
+					break;
+				}
+				case BufferedImage.TYPE_INT_RGB:
+				case BufferedImage.TYPE_INT_ARGB: {
+					SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+					ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+					scanlineStride = sampleModel.getScanlineStride();
+					offset = raster.getDataBuffer().getOffset() + y * scanlineStride + x;
+					hasAlpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+					break;
+				}
+				default:
+					argb = new int[width];
+			}
+		}
+
+		private static int[] table(ColorModel colorModel) {
+			if (colorModel instanceof IndexColorModel) {
+				int[] table = new int[256];
+				((IndexColorModel) colorModel).getRGBs(table);
+				return table;
+			}
+			int[] table = grayTables.get(colorModel);
+			if (table == null) {
+				table = new int[256];
+				for (int v = 0; v < 256; v++) {
+					table[v] = colorModel.getRGB(v);
+				}
+				grayTables.put(colorModel, table);
+			}
+			return table;
+		}
+
+		void read(int y, float[] row) {
+			if (bytes != null && table != null) {
+				int start = offset + y * scanlineStride + bandOffsets[0];
+				for (int x = 0; x < width; x++) {
+					toChannels(table[bytes[start + x * pixelStride] & 0xFF], row, x);
+				}
+			} else if (bytes != null) {
+				int start = offset + y * scanlineStride;
+				for (int x = 0, p = start; x < width; x++, p += pixelStride) {
+					float r = bytes[p + bandOffsets[0]] & 0xFF;
+					float g = bytes[p + bandOffsets[1]] & 0xFF;
+					float b = bytes[p + bandOffsets[2]] & 0xFF;
+					if (hasAlpha) {
+						float a = (bytes[p + bandOffsets[3]] & 0xFF) / 255.0f;
+						r *= a;
+						g *= a;
+						b *= a;
+					}
+					toChannels(r, g, b, row, x);
+				}
+			} else if (ints != null) {
+				int start = offset + y * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					toChannels(ints[start + x], row, x);
+				}
+			} else {
+				image.getRGB(0, y, width, 1, argb, 0, width);
+				for (int x = 0; x < width; x++) {
+					toChannels(argb[x], row, x);
+				}
+			}
+		}
+
+		private void toChannels(int pixel, float[] row, int x) {
+			float r = (pixel >> 16) & 0xFF;
+			float g = (pixel >> 8) & 0xFF;
+			float b = pixel & 0xFF;
+			if (hasAlpha || argb != null) {
+				float a = (pixel >>> 24) / 255.0f;
+				r *= a;
+				g *= a;
+				b *= a;
+			}
+			toChannels(r, g, b, row, x);
+		}
+
+		private void toChannels(float r, float g, float b, float[] row, int x) {
+			if (channels == 1) {
+				row[x] = 0.299f * r + 0.587f * g + 0.114f * b;
+			} else {
+				row[x * 3] = r;
+				row[x * 3 + 1] = g;
+				row[x * 3 + 2] = b;
+			}
+		}
+	}
 	
 	private int[] getPixelsFromBufferedImage(BufferedImage bufferedImage) {
 		return bufferedImage.getRGB( 0, 0, bufferedImage.getWidth(), bufferedImage.getHeight(), null, 0, bufferedImage.getWidth());		
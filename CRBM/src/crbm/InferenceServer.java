@@ -0,0 +1,348 @@
+package crbm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * HTTP inference for a trained {@link FeatureStack}. POST an image (png, jpg
+ * or gif) to /encode and get its hidden code and the label of the nearest
+ * cluster as JSON.
+ *
+ * Requests are queued and encoded by a single batching thread, which takes
+ * everything waiting in the queue (up to maxBatchSize images) as one batch.
+ * While a batch is encoded the next one fills up, so the batches grow with
+ * the load without adding latency when the server is idle. A full queue
+ * answers 503, as does a request that is not encoded within
+ * requestTimeoutSeconds. A failed batch answers 500 without the details,
+ * which are logged.
+ *
+ * A handler thread waits for the batch of its request, so there are as many
+ * as the queue is deep; a request that finds them all busy gets 503 before
+ * its body is read. Bodies over maxRequestBytes and images with an edge over
+ * maxImageEdgeLength answer 413 before they are decoded, and at most one
+ * image per processor is decoded at a time. An image that does not
+ * preprocess to the input size of the stack answers 400. Codes that are not
+ * finite are written as null.
+ *
+ * Usage: InferenceServer [checkpoint] [port] [queue depth] [max batch size]
+ */
+public class InferenceServer {
+
+    private static final String checkpointPath = "Data/model.crbm";
+    private static final int port = 8080;
+    private static final int queueDepth = 256;
+    private static final int maxBatchSize = 64;
+    private static final long requestTimeoutSeconds = 30;
+    private static final int maxRequestBytes = 256 * 1024;
+    private static final int maxImageEdgeLength = 512;
+
+    private final FeatureStack stack;
+    private final BlockingQueue<Request> queue;
+    private final int batchSize;
+    private final HttpServer server;
+    private final ThreadPoolExecutor handlers;
+    // set on the dispatcher thread while it answers a request no handler took
+    private final ThreadLocal<Boolean> busy = new ThreadLocal<>();
+    private final Semaphore decoders = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private final Thread batcher;
+    private volatile boolean running;
+
+    public InferenceServer(FeatureStack stack, int port, int queueDepth, int maxBatchSize) throws IOException {
+        this.stack = stack;
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.batchSize = maxBatchSize;
+
+        // handlers block until their batch is done, one per queued request;
+        // a request that finds them all busy is answered right away
+        this.handlers = new ThreadPoolExecutor(queueDepth, queueDepth, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable exchange, ThreadPoolExecutor executor) {
+                        busy.set(Boolean.TRUE);
+                        try {
+                            exchange.run();
+                        } finally {
+                            busy.remove();
+                        }
+                    }
+                });
+        this.handlers.allowCoreThreadTimeOut(true);
+        this.server = HttpServer.create(new InetSocketAddress(port), queueDepth);
+        this.server.createContext("/encode", new EncodeHandler());
+        this.server.setExecutor(handlers);
+
+        this.batcher = new Thread("inference-batcher") {
+            @Override
+            public void run() {
+                batchLoop();
+            }
+        };
+        this.batcher.setDaemon(true);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : checkpointPath;
+        FeatureStack stack = FeatureStack.load(new File(path));
+        if (stack == null) {
+            return;
+        }
+
+        InferenceServer server = new InferenceServer(stack,
+                args.length > 1 ? Integer.parseInt(args[1]) : port,
+                args.length > 2 ? Integer.parseInt(args[2]) : queueDepth,
+                args.length > 3 ? Integer.parseInt(args[3]) : maxBatchSize);
+        server.start();
+        System.out.println("Listening on port " + server.getPort());
+    }
+
+    public void start() {
+        running = true;
+        batcher.start();
+        server.start();
+    }
+
+    public void stop() {
+        running = false;
+        server.stop(0);
+        handlers.shutdownNow();
+        batcher.interrupt();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void batchLoop() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            float[][] images = new float[batch.size()][];
+            for (int i = 0; i < images.length; i++) {
+                images[i] = batch.get(i).image;
+            }
+
+            try {
+                float[][] codes = stack.encode(images);
+                String[] labels = stack.nearestLabels(codes);
+                for (int i = 0; i < codes.length; i++) {
+                    batch.get(i).result.complete(new Result(codes[i], labels[i]));
+                }
+            } catch (Throwable e) {
+                // also errors like OutOfMemoryError, the batcher has to keep
+                // running or every handler would wait for it
+                e.printStackTrace();
+                for (Request request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private final class EncodeHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (busy.get() != null) {
+                    send(exchange, 503, error("Server busy"));
+                    return;
+                }
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, error("POST an image"));
+                    return;
+                }
+
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null && Long.parseLong(length.trim()) > maxRequestBytes) {
+                    send(exchange, 413, error("Request too large"));
+                    return;
+                }
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    send(exchange, 413, error("Request too large"));
+                    return;
+                }
+
+                float[] data;
+                ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(body));
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    send(exchange, 400, error("Not an image"));
+                    return;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    // from the header, before any pixel is decoded
+                    if (reader.getWidth(0) > maxImageEdgeLength || reader.getHeight(0) > maxImageEdgeLength) {
+                        send(exchange, 413, error("Image too large"));
+                        return;
+                    }
+                    decoders.acquire();
+                    try {
+                        BufferedImage image = reader.read(0);
+                        data = Main.preprocess(image);
+                    } finally {
+                        decoders.release();
+                    }
+                } catch (IOException e) {
+                    send(exchange, 400, error("Not an image"));
+                    return;
+                } finally {
+                    reader.dispose();
+                }
+                int edgeLength = stack.getDataEdgeLength();
+                if (data.length != edgeLength * edgeLength) {
+                    send(exchange, 400, error("Image does not preprocess to " + edgeLength + "x" + edgeLength));
+                    return;
+                }
+
+                Request request = new Request(data);
+                if (!queue.offer(request)) {
+                    send(exchange, 503, error("Queue full"));
+                    return;
+                }
+
+                try {
+                    send(exchange, 200, toJson(request.result.get(requestTimeoutSeconds, TimeUnit.SECONDS)));
+                } catch (TimeoutException e) {
+                    request.result.cancel(false);
+                    send(exchange, 503, error("Timed out"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, error("Shutting down"));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, error("Bad Content-Length"));
+            } catch (ExecutionException | RuntimeException e) {
+                // the batcher logged the failure of the batch
+                if (!(e instanceof ExecutionException)) {
+                    e.printStackTrace();
+                }
+                send(exchange, 500, error("Encoding failed"));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * The whole body, or null if it is longer than maxRequestBytes.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            if (body.size() + n > maxRequestBytes) {
+                return null;
+            }
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + quote(message) + "}";
+    }
+
+    private static String toJson(Result result) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"label\": ").append(quote(result.label)).append(", \"code\": [");
+        for (int i = 0; i < result.code.length; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            float value = result.code[i];
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                json.append("null");
+            } else {
+                json.append(value);
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * A JSON string literal of value.
+     */
+    private static String quote(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static final class Request {
+        final float[] image;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Request(float[] image) {
+            this.image = image;
+        }
+    }
+
+    private static final class Result {
+        final float[] code;
+        final String label;
+
+        Result(float[] code, String label) {
+            this.code = code;
+            this.label = label;
+        }
+    }
+}
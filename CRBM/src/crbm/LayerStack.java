@@ -0,0 +1,475 @@
+package crbm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.jblas.FloatMatrix;
+
+/**
+ * CRBM layers with max pooling stacked into a convolutional deep belief
+ * network. Built layer by layer like a {@link Pipeline},
+ *
+ * LayerStack.create(32).then(15, 5, 2, 0).then(15, 5, 2, 1)
+ *
+ * and the shapes between the layers are inferred on the way: the hidden maps
+ * of a layer are input edge - filter edge + 1 wide, and their K pooled maps,
+ * rounded up, are the input tensor [channel][y][x] of the next layer, which
+ * has K channels. A single channel layer on top of several maps averages
+ * them instead, like layers trained before there were channels. The hidden
+ * maps of the first layer are normalized to [0, 1] per map.
+ *
+ * Images are encoded through a {@link Plan}, which allocates the buffers of
+ * all layers for a batch once, so the maps go from layer to layer without
+ * any allocation and only one copy into the tensor layout.
+ */
+public class LayerStack {
+
+    /**
+     * Gets the maps of every layer while images are encoded, e.g. to export
+     * them. Called from the encoding threads, the maps are copies.
+     */
+    public interface MapListener {
+        void maps(int index, int layer, float[][] hidden, float[][] pooled);
+    }
+
+    private final int dataEdgeLength;
+    private final CRBM[] crbms;
+    private final MaxPooling[] poolings;
+    // edge lengths and channels of the input of every layer and of the
+    // output, one more than there are layers
+    private final int[] dataEdgeLengths;
+    private final int[] channels;
+    // hidden and pooled edge lengths of every layer
+    private final int[] hiddenEdgeLengths;
+    private final int[] pooledEdgeLengths;
+
+    public LayerStack(CRBM[] crbms, int dataEdgeLength, int[] poolingSizes) {
+        this.dataEdgeLength = dataEdgeLength;
+        this.crbms = crbms.clone();
+        this.poolings = new MaxPooling[crbms.length];
+        this.dataEdgeLengths = new int[crbms.length + 1];
+        this.channels = new int[crbms.length + 1];
+        this.hiddenEdgeLengths = new int[crbms.length];
+        this.pooledEdgeLengths = new int[crbms.length];
+
+        int edgeLength = dataEdgeLength;
+        for (int l = 0; l < crbms.length; l++) {
+            if (crbms[l].getFilterEdgeLength() > edgeLength) {
+                throw new IllegalArgumentException("Layer " + (l + 1) + ": filters of edge length " + crbms[l].getFilterEdgeLength()
+                        + " do not fit into maps of edge length " + edgeLength);
+            }
+            if (l > 0 && crbms[l].getChannels() != 1 && crbms[l].getChannels() != crbms[l - 1].getK()) {
+                throw new IllegalArgumentException("Layer " + (l + 1) + ": " + crbms[l].getChannels() + " channels on top of "
+                        + crbms[l - 1].getK() + " maps");
+            }
+            poolings[l] = new MaxPooling(poolingSizes[l]);
+            dataEdgeLengths[l] = edgeLength;
+            channels[l] = crbms[l].getChannels();
+            hiddenEdgeLengths[l] = edgeLength - crbms[l].getFilterEdgeLength() + 1;
+            pooledEdgeLengths[l] = poolings[l].pooledEdgeLength(hiddenEdgeLengths[l]);
+            edgeLength = pooledEdgeLengths[l];
+        }
+        dataEdgeLengths[crbms.length] = edgeLength;
+        channels[crbms.length] = crbms.length > 0 ? crbms[crbms.length - 1].getK() : 1;
+    }
+
+    /**
+     * An empty stack for images of dataEdgeLength.
+     */
+    public static LayerStack create(int dataEdgeLength) {
+        return new LayerStack(new CRBM[0], dataEdgeLength, new int[0]);
+    }
+
+    /**
+     * A new stack with crbm and its pooling on top.
+     */
+    public LayerStack then(CRBM crbm, int poolingSize) {
+        CRBM[] nextCRBMs = Arrays.copyOf(crbms, crbms.length + 1);
+        nextCRBMs[crbms.length] = crbm;
+        int[] nextPoolingSizes = Arrays.copyOf(getPoolingSizes(), crbms.length + 1);
+        nextPoolingSizes[crbms.length] = poolingSize;
+        return new LayerStack(nextCRBMs, dataEdgeLength, nextPoolingSizes);
+    }
+
+    /**
+     * A new stack with a new single channel layer on top, trained and
+     * encoded on the average of the maps of the layer below.
+     */
+    public LayerStack then(int K, int filterEdgeLength, int poolingSize, long seed) {
+        return then(new CRBM(K, filterEdgeLength, seed), poolingSize);
+    }
+
+    /**
+     * A new stack with a new layer on top, with a channel for every map of
+     * the layer below. Keeps the maps apart, but costs a filter per channel
+     * in training and encoding.
+     */
+    public LayerStack thenMultiChannel(int K, int filterEdgeLength, int poolingSize, long seed) {
+        return then(new CRBM(channels[crbms.length], K, filterEdgeLength, seed), poolingSize);
+    }
+
+    public int getLayerCount() {
+        return crbms.length;
+    }
+
+    public CRBM getCRBM(int layer) {
+        return crbms[layer];
+    }
+
+    public CRBM[] getCRBMs() {
+        return crbms.clone();
+    }
+
+    /**
+     * Edge length of the images.
+     */
+    public int getDataEdgeLength() {
+        return dataEdgeLength;
+    }
+
+    /**
+     * Edge length of the input maps of every layer.
+     */
+    public int[] getDataEdgeLengths() {
+        return Arrays.copyOf(dataEdgeLengths, crbms.length);
+    }
+
+    public int[] getPoolingSizes() {
+        int[] result = new int[poolings.length];
+        for (int l = 0; l < poolings.length; l++) {
+            result[l] = poolings[l].getPoolingSize();
+        }
+        return result;
+    }
+
+    /**
+     * Length of the code of an image, the pooled maps of the last layer
+     * concatenated.
+     */
+    public int getOutputSize() {
+        return tensorSize(crbms.length);
+    }
+
+    /**
+     * Floats of the input tensor of a layer, or of the output.
+     */
+    private int tensorSize(int layer) {
+        return channels[layer] * dataEdgeLengths[layer] * dataEdgeLengths[layer];
+    }
+
+    /**
+     * Buffers for batches of up to batchSize images through all layers.
+     */
+    public Plan plan(int batchSize) {
+        return new Plan(batchSize, crbms.length);
+    }
+
+    /**
+     * The codes of all images, encoded in batches of batchSize by threads
+     * workers with a plan each.
+     */
+    public float[][] encode(float[][] images, int batchSize, int threads) {
+        return encode(images, batchSize, threads, null);
+    }
+
+    /**
+     * The codes of all images, passing the hidden and pooled maps of every
+     * layer to listener on the way.
+     */
+    public float[][] encode(float[][] images, int batchSize, int threads, MapListener listener) {
+        float[][] result = new float[images.length][];
+        run(images, crbms.length, batchSize, threads, result, null, listener);
+        return result;
+    }
+
+    /**
+     * The input tensors of a layer for all images, the images themselves for
+     * the first layer.
+     */
+    public float[][] getInput(float[][] images, int layer, int batchSize, int threads) {
+        if (layer == 0) {
+            return images;
+        }
+        float[][] result = new float[images.length][];
+        run(images, layer, batchSize, threads, result, null, null);
+        return result;
+    }
+
+    /**
+     * Greedy layer-wise training: trains one layer on the inputs encoded by
+     * the trained layers below. The first layer trains on the images with
+     * {@link CRBM#train(float[][], int, int, int, int, float, String)}; the
+     * inputs of the upper layers are read once per epoch, so they are kept
+     * on disk and streamed by
+     * {@link CRBM#train(MappedDataSet, int, int, int, float, String)}. Throws
+     * UncheckedIOException if the input file cannot be created, so a layer is
+     * never taken as trained when it was not.
+     */
+    public void train(float[][] images, int layer, int epochs, int batchSize, int threads, float learningRate, String exportPath) {
+        if (layer == 0) {
+            crbms[0].train(images, dataEdgeLength, epochs, batchSize, threads, learningRate, exportPath);
+            return;
+        }
+
+        try (MappedDataSet input = MappedDataSet.createTemp(images.length, tensorSize(layer))) {
+            run(images, layer, batchSize, threads, null, input, null);
+            crbms[layer].train(input, dataEdgeLengths[layer], epochs, batchSize, learningRate, exportPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map the input of layer " + (layer + 1), e);
+        }
+    }
+
+    /**
+     * Encodes the images through the first layers into result or mapped.
+     */
+    private void run(float[][] images, int layers, int batchSize, int threads, float[][] result, MappedDataSet mapped, MapListener listener) {
+        int workers = Math.max(1, Math.min(threads, (images.length + batchSize - 1) / batchSize));
+        Plan[] plans = new Plan[workers];
+        for (int w = 0; w < workers; w++) {
+            plans[w] = new Plan(batchSize, layers);
+        }
+        ForkJoinPool.commonPool().invoke(new EncodePartly(images, plans, result, mapped, listener, 0, workers));
+    }
+
+    private static final class EncodePartly extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final float[][] images;
+        final Plan[] plans;
+        final float[][] result;
+        final MappedDataSet mapped;
+        final MapListener listener;
+        final int workerStart;
+        final int workerEnd;
+
+        EncodePartly(float[][] images, Plan[] plans, float[][] result, MappedDataSet mapped, MapListener listener, int workerStart, int workerEnd) {
+            this.images = images;
+            this.plans = plans;
+            this.result = result;
+            this.mapped = mapped;
+            this.listener = listener;
+            this.workerStart = workerStart;
+            this.workerEnd = workerEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (workerEnd - workerStart > 1) {
+                int workerMiddle = (workerStart + workerEnd) >>> 1;
+                invokeAll(new EncodePartly(images, plans, result, mapped, listener, workerStart, workerMiddle),
+                        new EncodePartly(images, plans, result, mapped, listener, workerMiddle, workerEnd));
+                return;
+            }
+            Plan plan = plans[workerStart];
+            int start = (int) ((long) images.length * workerStart / plans.length);
+            int end = (int) ((long) images.length * workerEnd / plans.length);
+            for (int i = start; i < end; i += plan.getBatchSize()) {
+                int count = Math.min(plan.getBatchSize(), end - i);
+                plan.run(images, i, count);
+                if (listener != null) {
+                    plan.getMaps(listener, i);
+                }
+                if (mapped != null) {
+                    plan.getOutput(mapped, i);
+                } else {
+                    plan.getOutput(result, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The buffers of the first layers of the stack for batches of up to
+     * batchSize images, allocated once. Reused for every batch, so a plan
+     * must not be shared between threads.
+     */
+    public final class Plan {
+
+        private final int batchSize;
+        private final int layers;
+
+        // batchSize input tensors per layer, and one more for the input of
+        // the next layer or the output
+        private final float[][] inputs;
+        // batchSize * hidden size x channels * filter size, and x K; the
+        // layers that convolve through FFTs have an FFTConvolution instead
+        // of cols
+        private final FloatMatrix[] cols;
+        private final FFTConvolution[] ffts;
+        private final FloatMatrix[] hidden;
+        // K * batchSize pooled maps, map k of image i at k * count + i
+        private final float[][] pooled;
+
+        private int count;
+
+        private Plan(int batchSize, int layers) {
+            this.batchSize = batchSize;
+            this.layers = layers;
+            this.inputs = new float[layers + 1][];
+            this.cols = new FloatMatrix[layers];
+            this.ffts = new FFTConvolution[layers];
+            this.hidden = new FloatMatrix[layers];
+            this.pooled = new float[layers][];
+
+            for (int l = 0; l <= layers; l++) {
+                inputs[l] = new float[batchSize * tensorSize(l)];
+            }
+            for (int l = 0; l < layers; l++) {
+                int filterEdgeLength = crbms[l].getFilterEdgeLength();
+                int rSize = batchSize * hiddenEdgeLengths[l] * hiddenEdgeLengths[l];
+                if (FFTConvolution.isFaster(channels[l], crbms[l].getK(), filterEdgeLength, dataEdgeLengths[l])) {
+                    ffts[l] = new FFTConvolution(channels[l], crbms[l].getK(), filterEdgeLength, dataEdgeLengths[l], batchSize, false);
+                } else {
+                    cols[l] = new FloatMatrix(rSize, channels[l] * filterEdgeLength * filterEdgeLength);
+                }
+                hidden[l] = new FloatMatrix(rSize, crbms[l].getK());
+                pooled[l] = new float[crbms[l].getK() * batchSize * pooledEdgeLengths[l] * pooledEdgeLengths[l]];
+            }
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * Encodes count images from start on, at most batchSize.
+         */
+        public void run(float[][] images, int start, int count) {
+            this.count = count;
+            int tensorSize = tensorSize(0);
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(images[start + i], 0, inputs[0], i * tensorSize, tensorSize);
+            }
+            for (int l = 0; l < layers; l++) {
+                layer(l);
+            }
+        }
+
+        private void layer(int l) {
+            int tensorSize = tensorSize(l);
+            int rSize = hiddenEdgeLengths[l] * hiddenEdgeLengths[l];
+            int pooledSize = pooledEdgeLengths[l] * pooledEdgeLengths[l];
+            int K = crbms[l].getK();
+            FloatMatrix c = cols[l];
+            FloatMatrix h = hidden[l];
+
+            if (ffts[l] != null) {
+                crbms[l].hidden(ffts[l], inputs[l], count, h);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    Convolution.im2col(inputs[l], i * tensorSize, channels[l], dataEdgeLengths[l], crbms[l].getFilterEdgeLength(), c.data, i * rSize, c.rows);
+                }
+                crbms[l].hidden(c, h, count * rSize);
+            }
+
+            for (int k = 0; k < K; k++) {
+                if (l == 0) {
+                    for (int i = 0; i < count; i++) {
+                        normalize(h.data, k * h.rows + i * rSize, rSize);
+                    }
+                }
+                poolings[l].pool(h.data, k * h.rows, count, hiddenEdgeLengths[l], pooled[l], k * count * pooledSize, null);
+            }
+
+            if (channels[l + 1] == K) {
+                tensors(pooled[l], K, count, pooledSize, inputs[l + 1]);
+            } else {
+                average(pooled[l], K, count * pooledSize, inputs[l + 1]);
+            }
+        }
+
+        /**
+         * The result of the last run into result from offset on: the codes if
+         * the plan runs through all layers, the input tensors of the next
+         * layer otherwise. Missing rows are allocated.
+         */
+        public void getOutput(float[][] result, int offset) {
+            int size = tensorSize(layers);
+            for (int i = 0; i < count; i++) {
+                if (result[offset + i] == null) {
+                    result[offset + i] = new float[size];
+                }
+                System.arraycopy(inputs[layers], i * size, result[offset + i], 0, size);
+            }
+        }
+
+        /**
+         * Passes the hidden and pooled maps of every layer of the last run to
+         * listener, numbered from offset on.
+         */
+        public void getMaps(MapListener listener, int offset) {
+            for (int i = 0; i < count; i++) {
+                for (int l = 0; l < layers; l++) {
+                    int K = crbms[l].getK();
+                    int rSize = hiddenEdgeLengths[l] * hiddenEdgeLengths[l];
+                    int pooledSize = pooledEdgeLengths[l] * pooledEdgeLengths[l];
+                    float[][] h = new float[K][rSize];
+                    float[][] p = new float[K][pooledSize];
+                    for (int k = 0; k < K; k++) {
+                        System.arraycopy(hidden[l].data, k * hidden[l].rows + i * rSize, h[k], 0, rSize);
+                        System.arraycopy(pooled[l], (k * count + i) * pooledSize, p[k], 0, pooledSize);
+                    }
+                    listener.maps(offset + i, l, h, p);
+                }
+            }
+        }
+
+        public void getOutput(MappedDataSet result, int offset) {
+            int size = tensorSize(layers);
+            for (int i = 0; i < count; i++) {
+                result.put(offset + i, 0, inputs[layers], i * size, size);
+            }
+        }
+    }
+
+    /**
+     * The K maps of every image next to each other, from maps stored by map
+     * index first.
+     */
+    private static void tensors(float[] maps, int K, int count, int size, float[] result) {
+        for (int k = 0; k < K; k++) {
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(maps, (k * count + i) * size, result, (i * K + k) * size, size);
+            }
+        }
+    }
+
+    /**
+     * Mean of the channels stored one after another, length floats each.
+     */
+    private static void average(float[] channels, int count, int length, float[] result) {
+        System.arraycopy(channels, 0, result, 0, length);
+        for (int c = 1; c < count; c++) {
+            for (int p = 0; p < length; p++) {
+                result[p] += channels[c * length + p];
+            }
+        }
+        for (int p = 0; p < length; p++) {
+            result[p] /= (float) count;
+        }
+    }
+
+    /**
+     * Scales a map to [0, 1] in place, like Trainer#normalize. A constant
+     * map, e.g. of a blank image, becomes 0 instead of 0 / 0.
+     */
+    private static void normalize(float[] data, int offset, int length) {
+        float max = Float.NEGATIVE_INFINITY;
+        float min = Float.POSITIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++) {
+            max = Math.max(max, data[i]);
+            min = Math.min(min, data[i]);
+        }
+
+        float range = max - min;
+        if (!(range > 0)) {
+            Arrays.fill(data, offset, offset + length, 0.0f);
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            data[i] = (data[i] - min) / range;
+        }
+    }
+}
@@ -2,11 +2,17 @@ package crbm;
 
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -17,13 +23,20 @@ public class Main {
     private static final String importPath = "Data/MNIST_Small";
 
     private static final String exportPath = "export";
+    private static final String cacheSuffix = ".cache";
     private static final int edgeLength = 28;
+    // AREA matches the AWT SCALE_SMOOTH scaling of earlier versions
+    private static final ImageScaler.Method scaling = ImageScaler.Method.AREA;
     private static final int padding = 2;
     private static final boolean isRGB = false;
     private static final boolean binarize = false;
     private static final boolean invert = true;
     private static final float minData = 0.0f;
     private static final float maxData = 1.0f;
+    // images read ahead of the decoding threads
+    private static final int loadQueueDepth = 64;
+    // IDX images converted per bulk read
+    private static final int idxBatchSize = 1000;
 
     public static void main(String arg[]) {
         deleteOldExportData();
@@ -34,33 +47,139 @@ public class Main {
     public static DataSet[] loadData(String importPath) {
 
         File imageFolder = new File(importPath);
+        if (imageFolder.isFile()) {
+            return loadIdx(imageFolder);
+        }
         final File[] imageFiles = imageFolder.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
                 return (name.endsWith("jpg") || name.endsWith("png") || name.endsWith("gif"));
             }
         });
+        Arrays.sort(imageFiles);
+
+        // preprocessed images of earlier runs
+        DataCache cache = new DataCache(edgeLength, scaling, padding, isRGB, binarize, invert, minData, maxData);
+        File cacheFile = new File(importPath + cacheSuffix);
+        long fingerprint = DataCache.fingerprint(imageFiles);
+        DataSet[] result = cache.read(cacheFile, fingerprint);
+        if (result != null) {
+            return result;
+        }
 
-        int size = edgeLength * edgeLength;
-        DataSet[] result = new DataSet[imageFiles.length];
+        result = loadImages(imageFiles, Runtime.getRuntime().availableProcessors());
 
-        for (int i = 0; i < imageFiles.length; i++) {
-            float[] imageData;
-            try {
-                imageData = DataConverter.processPixelData(ImageIO.read(imageFiles[i]), edgeLength, binarize, invert, minData, maxData, isRGB);
-            } catch (IOException e) {
-                System.out.println("Could not load: " + imageFiles[i].getAbsolutePath());
-                return null;
+        // the fingerprint covers the skipped files too, a cache would hide
+        // them from later runs
+        if (result.length < imageFiles.length) {
+            System.out.println("Not writing cache, images were skipped: " + cacheFile.getAbsolutePath());
+            return result;
+        }
+        try {
+            cache.write(cacheFile, fingerprint, result);
+        } catch (IOException e) {
+            System.out.println("Could not write cache: " + cacheFile.getAbsolutePath());
+        }
+
+        return result;
+    }
+
+    /**
+     * An IDX image file of the MNIST distribution, with the label file next
+     * to it. The images are mapped, so there is no cache. Returns null if the
+     * files cannot be read.
+     */
+    public static DataSet[] loadIdx(File imageFile) {
+        try {
+            // MNIST stores ink as 255 on a background of 0, the opposite of
+            // the PNGs, so the IDX bytes are inverted the other way round
+            IdxDataSet idx = IdxDataSet.open(imageFile, IdxDataSet.labelFile(imageFile), padding, binarize, !invert, minData, maxData);
+            if (idx.getRows() != edgeLength || idx.getColumns() != edgeLength) {
+                System.out.println("IDX images are " + idx.getRows() + "x" + idx.getColumns() + ", not scaled to " + edgeLength);
             }
+            return idx.toDataSets(idxBatchSize);
+        } catch (IOException e) {
+            System.out.println("Could not read IDX file " + imageFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-            imageData = pad(imageData, edgeLength, padding);
+    /**
+     * Decodes and preprocesses the images without the cache. One thread reads
+     * the files ahead while threads threads decode them. Files that cannot be
+     * read or decoded are skipped and reported, the others keep their order.
+     */
+    public static DataSet[] loadImages(final File[] imageFiles, int threads) {
+        final DataSet[] loaded = new DataSet[imageFiles.length];
+        // why an image was skipped, written by the stage threads
+        final String[] errors = new String[imageFiles.length];
 
-            String label = imageFiles[i].getName().split("_")[0];
-            result[i] = new DataSet(imageData, label);
+        Pipeline.<File>create("Load " + imageFiles.length + " images", loadQueueDepth)
+                .then(new Pipeline.Stage<File, byte[]>() {
+                    @Override
+                    public byte[] process(int index, File file) {
+                        try {
+                            return Files.readAllBytes(file.toPath());
+                        } catch (IOException e) {
+                            errors[index] = e.toString();
+                            return null;
+                        }
+                    }
+                })
+                .then(new Pipeline.Stage<byte[], DataSet>() {
+                    @Override
+                    public DataSet process(int index, byte[] bytes) {
+                        if (bytes == null) {
+                            return null;
+                        }
+                        try {
+                            BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)));
+                            if (image == null) {
+                                errors[index] = "unknown image format";
+                                return null;
+                            }
+                            String label = imageFiles[index].getName().split("_")[0];
+                            return new DataSet(preprocess(image), label);
+                        } catch (IOException | RuntimeException e) {
+                            errors[index] = e.toString();
+                            return null;
+                        }
+                    }
+                }, threads)
+                .run(imageFiles.length, new Pipeline.Source<File>() {
+                    @Override
+                    public File get(int index) {
+                        return imageFiles[index];
+                    }
+                }, new Pipeline.Sink<DataSet>() {
+                    @Override
+                    public void accept(int index, DataSet output) {
+                        loaded[index] = output;
+                    }
+                });
 
+        List<DataSet> result = new ArrayList<DataSet>(imageFiles.length);
+        int skipped = 0;
+        for (int i = 0; i < imageFiles.length; i++) {
+            if (loaded[i] != null) {
+                result.add(loaded[i]);
+            } else {
+                System.out.println("Could not load: " + imageFiles[i].getAbsolutePath() + " (" + errors[i] + ")");
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " of " + imageFiles.length + " images");
         }
+        return result.toArray(new DataSet[result.size()]);
+    }
 
-        return result;
+    /**
+     * Scales and pads one image like the images of loadData.
+     */
+    public static float[] preprocess(BufferedImage image) {
+        float[] imageData = DataConverter.processPixelData(image, edgeLength, scaling, binarize, invert, minData, maxData, isRGB);
+        return pad(imageData, edgeLength, padding);
     }
 
     public static float[][] dataSetToArray(DataSet[] dataSet) {
@@ -105,46 +224,32 @@ public class Main {
     }
 
     public static List<Cluster> generateClusters(DataSet[] data) {
-        List<Cluster> clusters = new LinkedList<Cluster>();
+        // clusters by label, in order of their first data set
+        Map<String, Cluster> clusters = new LinkedHashMap<String, Cluster>();
 
         for (DataSet ds : data) {
-            boolean found = false;
             String label = ds.getLabel();
-            for (Cluster c : clusters) {
-                if (c.getLabel().equals(label)) {
-                    c.addVector(ds.getData());
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                Cluster c = new Cluster(label);
-                c.addVector(ds.getData());
-                clusters.add(c);
+            Cluster c = clusters.get(label);
+            if (c == null) {
+                c = new Cluster(label);
+                clusters.put(label, c);
             }
+            c.addVector(ds.getData());
         }
-        for (Cluster c : clusters) {
+        for (Cluster c : clusters.values()) {
             c.init();
         }
 
-        return clusters;
+        return new ArrayList<Cluster>(clusters.values());
     }
 
     public static float checkClusters(List<Cluster> clusters, DataSet[] data) {
         System.out.println("Check clusters");
         int wrongDecision = 0;
-        for (DataSet ds : data) {
-            float[] d = ds.getData();
-            float bestClusterDistance = Float.MAX_VALUE;
-            String bestClusterLabel = "foobar";
-            for (Cluster c : clusters) {
-                float clusterDistance = c.distanceToCenter(d);
-                if (clusterDistance < bestClusterDistance) {
-                    bestClusterDistance = clusterDistance;
-                    bestClusterLabel = c.getLabel();
-                }
-            }
-            String realLabel = ds.getLabel();
+        String[] labels = new CentroidClassifier(clusters).nearestLabels(dataSetToArray(data));
+        for (int i = 0; i < data.length; i++) {
+            String bestClusterLabel = labels[i];
+            String realLabel = data[i].getLabel();
             if (!(bestClusterLabel.equals(realLabel))) {
                 ++wrongDecision;
                 System.out.println("Found " + bestClusterLabel + " instead of " + realLabel);
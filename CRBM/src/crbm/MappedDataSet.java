@@ -0,0 +1,174 @@
+package crbm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size float records (images or the stacked feature maps of one image)
+ * stored in a file and accessed through memory-mapped segments, so data sets
+ * and layer activations larger than the heap can be streamed. Every segment
+ * holds whole records and is at most 2 GB. Labels, if any, stay on the heap.
+ */
+public class MappedDataSet implements Closeable {
+
+    private static final int MAGIC = 0x43524D44; // "CRMD"
+    private static final int HEADER_SIZE = 64;
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final int count;
+    private final int recordLength;
+    private final int recordsPerSegment;
+    private final FloatBuffer[] segments;
+    private final String[] labels;
+    private final boolean deleteOnClose;
+
+    private MappedDataSet(File file, boolean create, int count, int recordLength, String[] labels, boolean deleteOnClose) throws IOException {
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+        this.randomAccessFile = new RandomAccessFile(file, create ? "rw" : "r");
+        FileChannel channel = randomAccessFile.getChannel();
+
+        if (create) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(count).putInt(recordLength);
+            header.rewind();
+            channel.write(header, 0);
+            randomAccessFile.setLength(HEADER_SIZE + (long) count * recordLength * 4);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                randomAccessFile.close();
+                throw new IOException("Not a mapped data set: " + file.getAbsolutePath());
+            }
+            count = header.getInt();
+            recordLength = header.getInt();
+        }
+
+        this.count = count;
+        this.recordLength = recordLength;
+        this.labels = labels;
+
+        long recordBytes = (long) recordLength * 4;
+        this.recordsPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / recordBytes);
+        int segmentCount = (count + recordsPerSegment - 1) / recordsPerSegment;
+        this.segments = new FloatBuffer[segmentCount];
+
+        FileChannel.MapMode mode = create ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int s = 0; s < segmentCount; s++) {
+            int records = Math.min(recordsPerSegment, count - s * recordsPerSegment);
+            long position = HEADER_SIZE + (long) s * recordsPerSegment * recordBytes;
+            segments[s] = channel.map(mode, position, records * recordBytes).asFloatBuffer();
+        }
+    }
+
+    public static MappedDataSet create(File file, int count, int recordLength, String[] labels) throws IOException {
+        return new MappedDataSet(file, true, count, recordLength, labels, false);
+    }
+
+    /**
+     * Scratch storage, e.g. for the activations of a layer. The file is
+     * deleted on close.
+     */
+    public static MappedDataSet createTemp(int count, int recordLength) throws IOException {
+        File file = File.createTempFile("crbm", ".bin");
+        file.deleteOnExit();
+        return new MappedDataSet(file, true, count, recordLength, null, true);
+    }
+
+    public static MappedDataSet open(File file, String[] labels) throws IOException {
+        return new MappedDataSet(file, false, 0, 0, labels, false);
+    }
+
+    /**
+     * Writes the data sets to file and maps them.
+     */
+    public static MappedDataSet of(File file, DataSet[] data) throws IOException {
+        String[] labels = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            labels[i] = data[i].getLabel();
+        }
+
+        MappedDataSet result = create(file, data.length, data[0].getData().length, labels);
+        for (int i = 0; i < data.length; i++) {
+            result.put(i, data[i].getData());
+        }
+        return result;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    public void get(int index, float[] dest, int destOffset) {
+        record(index).get(dest, destOffset, recordLength);
+    }
+
+    public float[] getData(int index) {
+        float[] result = new float[recordLength];
+        get(index, result, 0);
+        return result;
+    }
+
+    /**
+     * The record split into channels of equal length, e.g. the K feature maps
+     * of one image.
+     */
+    public float[][] getData(int index, int channels) {
+        int channelLength = recordLength / channels;
+        FloatBuffer record = record(index);
+
+        float[][] result = new float[channels][channelLength];
+        for (int c = 0; c < channels; c++) {
+            record.get(result[c]);
+        }
+        return result;
+    }
+
+    public DataSet getDataSet(int index) {
+        return new DataSet(getData(index), labels == null ? null : labels[index]);
+    }
+
+    public void put(int index, float[] src) {
+        put(index, 0, src, 0, recordLength);
+    }
+
+    public void put(int index, float[][] channels) {
+        FloatBuffer record = record(index);
+        for (float[] channel : channels) {
+            record.put(channel);
+        }
+    }
+
+    public void put(int index, int recordOffset, float[] src, int srcOffset, int length) {
+        FloatBuffer record = record(index);
+        record.position(record.position() + recordOffset);
+        record.put(src, srcOffset, length);
+    }
+
+    private FloatBuffer record(int index) {
+        FloatBuffer record = segments[index / recordsPerSegment].duplicate();
+        record.position((index % recordsPerSegment) * recordLength);
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+        if (deleteOnClose) {
+            file.delete();
+        }
+    }
+}
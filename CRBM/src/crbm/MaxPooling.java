@@ -0,0 +1,334 @@
+package crbm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Max pooling of square maps in non-overlapping poolingSize blocks. Edges
+ * that are not a multiple of poolingSize get smaller blocks at the right and
+ * bottom (ceil mode), so the maps are pooled in a single pass without
+ * upsampling them first.
+ *
+ * pool can record the index of the maximum of every block in its map, so
+ * that unpool puts the pooled values back where they came from, e.g. for
+ * reconstructions.
+ *
+ * probabilisticPool is the probabilistic max pooling of Lee et al.,
+ * "Convolutional Deep Belief Networks for Scalable Unsupervised Learning of
+ * Hierarchical Representations" (2009): at most one hidden unit of a block
+ * is on, and the pooling unit is on if one of them is. From the bottom-up
+ * activations I of a block
+ *
+ * P(h = 1) = exp(I(h)) / (1 + sum exp(I))
+ * P(p = 1) = 1 - 1 / (1 + sum exp(I))
+ *
+ * The flat versions take many maps stored one after another, e.g. all maps
+ * of a batch, and split them between the threads of the common pool.
+ */
+public class MaxPooling {
+
+    // floats of input a task pools without splitting
+    private static final int minTaskSize = 1 << 14;
+
+    private final int poolingSize;
+
+    public MaxPooling(int poolingSize) {
+        this.poolingSize = poolingSize;
+    }
+
+    public int getPoolingSize() {
+        return poolingSize;
+    }
+
+    /**
+     * Edge length of a pooled map, rounded up.
+     */
+    public static int pooledEdgeLength(int edgeLength, int poolingSize) {
+        return (edgeLength + poolingSize - 1) / poolingSize;
+    }
+
+    public int pooledEdgeLength(int edgeLength) {
+        return pooledEdgeLength(edgeLength, poolingSize);
+    }
+
+    public float[][] pool(float[][] maps, int edgeLength) {
+        return pool(maps, edgeLength, null);
+    }
+
+    /**
+     * Pools every map. If argmax is not null, its rows receive the index of
+     * the maximum of every block in the map.
+     */
+    public float[][] pool(float[][] maps, int edgeLength, int[][] argmax) {
+        int pooledSize = pooledEdgeLength(edgeLength) * pooledEdgeLength(edgeLength);
+        float[][] result = new float[maps.length][pooledSize];
+        for (int k = 0; k < maps.length; k++) {
+            if (argmax != null && argmax[k] == null) {
+                argmax[k] = new int[pooledSize];
+            }
+            pool(maps[k], 0, edgeLength, result[k], 0, argmax != null ? argmax[k] : null, 0);
+        }
+        return result;
+    }
+
+    /**
+     * The maps of a batch of images, in parallel.
+     */
+    public float[][][] pool(final float[][][] batch, final int edgeLength, final int[][][] argmax) {
+        final float[][][] result = new float[batch.length][][];
+        invoke(new Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    if (argmax != null && argmax[i] == null) {
+                        argmax[i] = new int[batch[i].length][];
+                    }
+                    result[i] = pool(batch[i], edgeLength, argmax != null ? argmax[i] : null);
+                }
+            }
+        }, batch.length, batch.length == 0 ? 0 : batch[0].length * edgeLength * edgeLength);
+        return result;
+    }
+
+    /**
+     * Pools count maps stored one after another in maps to pooled, in
+     * parallel. argmax may be null.
+     */
+    public void pool(float[] maps, int count, int edgeLength, float[] pooled, int[] argmax) {
+        pool(maps, 0, count, edgeLength, pooled, 0, argmax);
+    }
+
+    /**
+     * Same as above for maps starting at offset, pooled to pooled and argmax
+     * from pooledOffset on.
+     */
+    public void pool(final float[] maps, final int offset, final int count, final int edgeLength, final float[] pooled, final int pooledOffset, final int[] argmax) {
+        final int size = edgeLength * edgeLength;
+        final int pooledSize = pooledEdgeLength(edgeLength) * pooledEdgeLength(edgeLength);
+        invoke(new Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int m = start; m < end; m++) {
+                    pool(maps, offset + m * size, edgeLength, pooled, pooledOffset + m * pooledSize, argmax, pooledOffset + m * pooledSize);
+                }
+            }
+        }, count, size);
+    }
+
+    /**
+     * One map from offset to pooled at pooledOffset, the indices relative to
+     * offset. The maxima are selected without branches since they are
+     * unpredictable, the full blocks of 2x2 pooling have their own loop.
+     */
+    private void pool(float[] map, int offset, int edgeLength, float[] pooled, int pooledOffset, int[] argmax, int argmaxOffset) {
+        int pooledEdgeLength = pooledEdgeLength(edgeLength);
+        int fullBlocks = edgeLength / poolingSize;
+
+        for (int y = 0; y < pooledEdgeLength; y++) {
+            int out = pooledOffset + y * pooledEdgeLength;
+            int x = 0;
+
+            if (poolingSize == 2 && y < fullBlocks) {
+                int top = offset + 2 * y * edgeLength;
+                int bottom = top + edgeLength;
+                if (argmax == null) {
+                    for (; x < fullBlocks; x++) {
+                        int b = 2 * x;
+                        pooled[out + x] = Math.max(Math.max(map[top + b], map[top + b + 1]), Math.max(map[bottom + b], map[bottom + b + 1]));
+                    }
+                } else {
+                    for (; x < fullBlocks; x++) {
+                        int b = 2 * x;
+                        float max = map[top + b];
+                        int best = top + b;
+                        best = map[top + b + 1] > max ? top + b + 1 : best;
+                        max = Math.max(max, map[top + b + 1]);
+                        best = map[bottom + b] > max ? bottom + b : best;
+                        max = Math.max(max, map[bottom + b]);
+                        best = map[bottom + b + 1] > max ? bottom + b + 1 : best;
+                        max = Math.max(max, map[bottom + b + 1]);
+                        pooled[out + x] = max;
+                        argmax[argmaxOffset + y * pooledEdgeLength + x] = best - offset;
+                    }
+                }
+            }
+
+            // other pooling sizes and the smaller blocks at the edges
+            int yStart = y * poolingSize;
+            int yEnd = Math.min(yStart + poolingSize, edgeLength);
+            for (; x < pooledEdgeLength; x++) {
+                int xStart = x * poolingSize;
+                int xEnd = Math.min(xStart + poolingSize, edgeLength);
+
+                int best = offset + yStart * edgeLength + xStart;
+                float max = map[best];
+                for (int yh = yStart; yh < yEnd; yh++) {
+                    for (int pos = offset + yh * edgeLength + xStart; pos < offset + yh * edgeLength + xEnd; pos++) {
+                        best = map[pos] > max ? pos : best;
+                        max = Math.max(max, map[pos]);
+                    }
+                }
+
+                pooled[out + x] = max;
+                if (argmax != null) {
+                    argmax[argmaxOffset + y * pooledEdgeLength + x] = best - offset;
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps of edgeLength that hold the pooled values at their argmax and 0
+     * elsewhere.
+     */
+    public float[][] unpool(float[][] pooled, int[][] argmax, int edgeLength) {
+        float[][] result = new float[pooled.length][edgeLength * edgeLength];
+        for (int k = 0; k < pooled.length; k++) {
+            for (int p = 0; p < pooled[k].length; p++) {
+                result[k][argmax[k][p]] = pooled[k][p];
+            }
+        }
+        return result;
+    }
+
+    public float[][][] unpool(final float[][][] pooled, final int[][][] argmax, final int edgeLength) {
+        final float[][][] result = new float[pooled.length][][];
+        invoke(new Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    result[i] = unpool(pooled[i], argmax[i], edgeLength);
+                }
+            }
+        }, pooled.length, pooled.length == 0 ? 0 : pooled[0].length * edgeLength * edgeLength);
+        return result;
+    }
+
+    /**
+     * Probabilistic max pooling of count maps of bottom-up activations stored
+     * one after another, in parallel. The activations are replaced by the
+     * hidden probabilities and pooled receives the probabilities of the
+     * pooling units.
+     */
+    public void probabilisticPool(final float[] activations, final int count, final int edgeLength, final float[] pooled) {
+        final int size = edgeLength * edgeLength;
+        final int pooledSize = pooledEdgeLength(edgeLength) * pooledEdgeLength(edgeLength);
+        invoke(new Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int m = start; m < end; m++) {
+                    probabilisticPool(activations, m * size, edgeLength, pooled, m * pooledSize);
+                }
+            }
+        }, count, size);
+    }
+
+    /**
+     * Softmax of every block with an extra unit of activation 0, shifted by
+     * the largest activation so that exp cannot overflow. exp is evaluated
+     * in float precision like in FastLogisticMatrixFunction.
+     */
+    private void probabilisticPool(float[] map, int offset, int edgeLength, float[] pooled, int pooledOffset) {
+        int pooledEdgeLength = pooledEdgeLength(edgeLength);
+        int fullBlocks = edgeLength / poolingSize;
+
+        for (int y = 0; y < pooledEdgeLength; y++) {
+            int out = pooledOffset + y * pooledEdgeLength;
+            int x = 0;
+
+            if (poolingSize == 2 && y < fullBlocks) {
+                int top = offset + 2 * y * edgeLength;
+                int bottom = top + edgeLength;
+                for (; x < fullBlocks; x++) {
+                    int b = 2 * x;
+                    float max = Math.max(0.0f, Math.max(Math.max(map[top + b], map[top + b + 1]), Math.max(map[bottom + b], map[bottom + b + 1])));
+                    float off = FastLogisticMatrixFunction.exp(-max);
+                    float e0 = FastLogisticMatrixFunction.exp(map[top + b] - max);
+                    float e1 = FastLogisticMatrixFunction.exp(map[top + b + 1] - max);
+                    float e2 = FastLogisticMatrixFunction.exp(map[bottom + b] - max);
+                    float e3 = FastLogisticMatrixFunction.exp(map[bottom + b + 1] - max);
+                    float scale = 1.0f / (off + e0 + e1 + e2 + e3);
+                    map[top + b] = e0 * scale;
+                    map[top + b + 1] = e1 * scale;
+                    map[bottom + b] = e2 * scale;
+                    map[bottom + b + 1] = e3 * scale;
+                    pooled[out + x] = 1.0f - off * scale;
+                }
+            }
+
+            // other pooling sizes and the smaller blocks at the edges
+            int yStart = y * poolingSize;
+            int yEnd = Math.min(yStart + poolingSize, edgeLength);
+            for (; x < pooledEdgeLength; x++) {
+                int xStart = x * poolingSize;
+                int xEnd = Math.min(xStart + poolingSize, edgeLength);
+
+                float max = 0.0f;
+                for (int yh = yStart; yh < yEnd; yh++) {
+                    for (int pos = offset + yh * edgeLength + xStart; pos < offset + yh * edgeLength + xEnd; pos++) {
+                        max = Math.max(max, map[pos]);
+                    }
+                }
+                float off = FastLogisticMatrixFunction.exp(-max);
+                float sum = off;
+                for (int yh = yStart; yh < yEnd; yh++) {
+                    for (int pos = offset + yh * edgeLength + xStart; pos < offset + yh * edgeLength + xEnd; pos++) {
+                        map[pos] = FastLogisticMatrixFunction.exp(map[pos] - max);
+                        sum += map[pos];
+                    }
+                }
+
+                float scale = 1.0f / sum;
+                for (int yh = yStart; yh < yEnd; yh++) {
+                    for (int pos = offset + yh * edgeLength + xStart; pos < offset + yh * edgeLength + xEnd; pos++) {
+                        map[pos] *= scale;
+                    }
+                }
+                pooled[out + x] = 1.0f - off * scale;
+            }
+        }
+    }
+
+    /**
+     * Work on the elements [start, end) of a range.
+     */
+    private interface Range {
+        void run(int start, int end);
+    }
+
+    private static void invoke(Range range, int count, int size) {
+        if (count > 0) {
+            ForkJoinPool.commonPool().invoke(new Partly(range, 0, count, size));
+        }
+    }
+
+    /**
+     * Splits [start, end) in halves while a half has at least minTaskSize
+     * floats of input, size per element.
+     */
+    private final static class Partly extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Range range;
+        final int start;
+        final int end;
+        final int size;
+
+        Partly(Range range, int start, int end, int size) {
+            this.range = range;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start < 2 || (long) (end - start) * size < 2L * minTaskSize) {
+                range.run(start, end);
+                return;
+            }
+            final int middle = (start + end) >>> 1;
+            invokeAll(new Partly(range, start, middle, size), new Partly(range, middle, end, size));
+        }
+    }
+}
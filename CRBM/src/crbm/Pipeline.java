@@ -0,0 +1,207 @@
+package crbm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams images through a chain of stages. Every stage runs in its own
+ * thread, or several for stages that are the bottleneck, and the stages are
+ * connected by bounded queues, so only about queueDepth images per stage are
+ * in flight at a time instead of the whole data set. Items leave the
+ * pipeline in source order unless a stage runs on several threads; the sink
+ * gets the source index of every item either way.
+ */
+public class Pipeline<I, O> {
+
+    public interface Source<T> {
+        T get(int index);
+    }
+
+    public interface Stage<I, O> {
+        O process(int index, I input);
+    }
+
+    public interface Sink<T> {
+        void accept(int index, T output);
+    }
+
+    private static final Item END = new Item(-1, null);
+
+    private final String name;
+    private final int queueDepth;
+    private final List<Stage<Object, Object>> stages;
+    private final List<Integer> threadCounts;
+
+    private Pipeline(String name, int queueDepth, List<Stage<Object, Object>> stages, List<Integer> threadCounts) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.stages = stages;
+        this.threadCounts = threadCounts;
+    }
+
+    public static <T> Pipeline<T, T> create(String name, int queueDepth) {
+        return new Pipeline<>(name, queueDepth, new ArrayList<Stage<Object, Object>>(), new ArrayList<Integer>());
+    }
+
+    public <N> Pipeline<I, N> then(Stage<? super O, ? extends N> stage) {
+        return then(stage, 1);
+    }
+
+    /**
+     * A stage run by threads threads at once, so it must not change shared
+     * state. Its items come out in the order they finish.
+     */
+    @SuppressWarnings("unchecked")
+    public <N> Pipeline<I, N> then(Stage<? super O, ? extends N> stage, int threads) {
+        List<Stage<Object, Object>> next = new ArrayList<>(stages);
+        next.add((Stage<Object, Object>) stage);
+        List<Integer> nextThreadCounts = new ArrayList<>(threadCounts);
+        nextThreadCounts.add(threads);
+        return new Pipeline<>(name, queueDepth, next, nextThreadCounts);
+    }
+
+    /**
+     * Feeds count items from the source through all stages into the sink,
+     * which runs in the calling thread. Returns the throughput in items per
+     * second. An exception in any stage stops the source and is rethrown here
+     * once the pipeline has drained.
+     */
+    @SuppressWarnings("unchecked")
+    public float run(final int count, final Source<? extends I> source, Sink<? super O> sink) {
+        long start = System.nanoTime();
+        final Failure failure = new Failure();
+
+        List<BlockingQueue<Item>> queues = new ArrayList<>();
+        for (int s = 0; s <= stages.size(); s++) {
+            queues.add(new ArrayBlockingQueue<Item>(queueDepth));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+
+        final BlockingQueue<Item> first = queues.get(0);
+        threads.add(new Thread(name + "-source") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count && !failure.isSet(); i++) {
+                        first.put(new Item(i, source.get(i)));
+                    }
+                } catch (RuntimeException | InterruptedException e) {
+                    failure.set(e);
+                } finally {
+                    putEnd(first);
+                }
+            }
+        });
+
+        for (int s = 0; s < stages.size(); s++) {
+            final Stage<Object, Object> stage = stages.get(s);
+            final BlockingQueue<Item> in = queues.get(s);
+            final BlockingQueue<Item> out = queues.get(s + 1);
+            final int threadCount = threadCounts.get(s);
+            // the last thread of the stage to see END passes it on
+            final AtomicInteger running = new AtomicInteger(threadCount);
+
+            for (int t = 0; t < threadCount; t++) {
+                threads.add(new Thread(name + "-stage-" + s + (threadCount > 1 ? "-" + t : "")) {
+                    @Override
+                    public void run() {
+                        try {
+                            for (Item item = in.take(); item != END; item = in.take()) {
+                                // after a failure keep draining so upstream threads are not blocked
+                                if (!failure.isSet()) {
+                                    try {
+                                        out.put(new Item(item.index, stage.process(item.index, item.value)));
+                                    } catch (RuntimeException e) {
+                                        failure.set(e);
+                                    }
+                                }
+                            }
+                            // for the other threads of the stage
+                            putEnd(in);
+                        } catch (InterruptedException e) {
+                            failure.set(e);
+                        } finally {
+                            if (running.decrementAndGet() == 0) {
+                                putEnd(out);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        BlockingQueue<Item> last = queues.get(stages.size());
+        int processed = 0;
+        try {
+            for (Item item = last.take(); item != END; item = last.take()) {
+                if (!failure.isSet()) {
+                    try {
+                        sink.accept(item.index, (O) item.value);
+                        processed++;
+                    } catch (RuntimeException e) {
+                        failure.set(e);
+                    }
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            failure.set(e);
+        }
+
+        if (failure.isSet()) {
+            throw new RuntimeException(name + " failed", failure.get());
+        }
+
+        float seconds = (System.nanoTime() - start) / 1e9f;
+        float imagesPerSecond = processed / seconds;
+        System.out.println(name + ": " + processed + " images in " + seconds + " s (" + imagesPerSecond + " images/sec)");
+        return imagesPerSecond;
+    }
+
+    private static void putEnd(BlockingQueue<Item> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Item {
+        final int index;
+        final Object value;
+
+        Item(int index, Object value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    private static final class Failure {
+        private volatile Throwable cause;
+
+        synchronized void set(Throwable cause) {
+            if (this.cause == null) {
+                this.cause = cause;
+            }
+        }
+
+        boolean isSet() {
+            return cause != null;
+        }
+
+        Throwable get() {
+            return cause;
+        }
+    }
+}
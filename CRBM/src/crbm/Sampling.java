@@ -0,0 +1,22 @@
+package crbm;
+
+import java.util.SplittableRandom;
+
+/**
+ * Sampling of binary units. SplittableRandom is not synchronized, so every
+ * thread needs its own instance, e.g. split from one seeded instance.
+ */
+public class Sampling {
+
+    /**
+     * result[i] = 1 with probability probabilities[i], else 0, for
+     * i = offset .. offset + length - 1.
+     */
+    public static void bernoulli(float[] probabilities, int offset, int length, float[] result, SplittableRandom random) {
+        for (int i = offset; i < offset + length; i++) {
+            // 24 random bits, uniform on [0, 1) in float precision
+            float u = (random.nextInt() >>> 8) * 0x1.0p-24f;
+            result[i] = (probabilities[i] > u) ? 1 : 0;
+        }
+    }
+}
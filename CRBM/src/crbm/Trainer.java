@@ -3,7 +3,8 @@ package crbm;
 import crbm.rbm.IRBM;
 import crbm.rbm.RBMJBlasOpti;
 import crbm.rbm.StoppingCondition;
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -13,99 +14,167 @@ public class Trainer {
     
     private static final String trainingDataPath = "Data/MNIST_Small";
     private static final String testDataPath = "Data/MNIST_Small";
+    private static final String checkpointPath = "Data/model.crbm";
     
     private final int K = 15;
+    // applied to the mean gradient of a batch; scaled up with the batch size
+    // the CRBMs stall at a higher reconstruction error, see LearningRateCheck
     private final float learningRate = 0.01f;
     private final int epochs = 100;
+    private final int batchSize = 32;
+    private final int threads = Runtime.getRuntime().availableProcessors();
+    private final int checkpointInterval = 10;
 
+    private final int dataEdgeLength = 32;
     private final int crbmFilterEdgeLength = 5;
-
-    private final int crbm1DataEdgeLength = 32;
-    private final int crbm1PoolingSize = 2;
-
-    private final int crbm2DataEdgeLength = crbm1DataEdgeLength - crbmFilterEdgeLength + 1;
-    private final int crbm2PoolingSize = 2;
+    // one CRBM layer per pooling size
+    private final int[] crbmPoolingSizes = {2, 2};
+    // mean hidden probability the CRBM layers are pulled toward
+    private final float crbmSparsityTarget = 0.05f;
+    private final float crbmSparsityCost = 10f;
+    // the upper layers see the average of the maps below; a filter per map
+    // keeps them apart but trains about 6 times slower
+    private final boolean crbmMultiChannel = false;
+    // layer l is initialized from crbmSeed + l
+    private final long crbmSeed = 1;
     
     private final int rbmOutputSize = 30;
+    private final int rbmEpochs = 50;
+    private final int rbmBatchSize = 20;
+    private final float rbmMomentum = 0.9f;
+    private final float rbmWeightDecay = 0.0002f;
 
     public void train() {
 
         DataSet[] trainingDataSet = Main.loadData(trainingDataPath);
         float[][] trainingData = Main.dataSetToArray(trainingDataSet);
 
-        CRBM crbm1 = new CRBM(K, crbmFilterEdgeLength);
-        crbm1.train(trainingData, crbm1DataEdgeLength, epochs, learningRate, "First-RBM");
-        float[][][] hidden1 = normalize(crbm1.getHidden(trainingData, crbm1DataEdgeLength));
-
-        Main.exportAsImage(reduceDimension(hidden1), "hidden1", 0);
-
-        float[][][] maxPooled1 = maxPooling(hidden1, crbm1PoolingSize, crbm1DataEdgeLength, crbmFilterEdgeLength);
-        int crbm2MaxPooledDataEdgeLength = maxPoolEdgeCalc(crbm1PoolingSize, crbm1DataEdgeLength, crbmFilterEdgeLength);
-
-        Main.exportAsImage(reduceDimension(maxPooled1), "maxPooled1", 0);
-
-        CRBM crbm2 = new CRBM(K, crbmFilterEdgeLength);
-        crbm2.train(maxPooled1, crbm2MaxPooledDataEdgeLength, epochs, learningRate, "Second-RBM");
-        float[][][] hidden2 = normalize(crbm2.getHidden(maxPooled1, crbm2MaxPooledDataEdgeLength));
-
-        Main.exportAsImage(reduceDimension(hidden2), "hidden2", 0);
-
-        float[][][] maxPooled2 = maxPooling(hidden2, crbm2PoolingSize, crbm2MaxPooledDataEdgeLength, crbmFilterEdgeLength);
+        // resume from the last checkpoint, a complete one skips training
+        Checkpoint checkpoint = Checkpoint.read(new File(checkpointPath));
+        LayerStack layers;
+        RBMJBlasOpti rbm = null;
+        int stage = 0;
+        int epoch = 0;
+        if (checkpoint != null) {
+            layers = new LayerStack(checkpoint.getCRBMs(), checkpoint.getDataEdgeLengths()[0], checkpoint.getPoolingSizes());
+            rbm = checkpoint.getRBM();
+            stage = checkpoint.getStage();
+            epoch = checkpoint.getEpoch();
+            System.out.println("Resuming from stage " + stage + ", epoch " + epoch);
+        } else {
+            layers = LayerStack.create(dataEdgeLength);
+            for (int l = 0; l < crbmPoolingSizes.length; l++) {
+                long seed = crbmSeed + l;
+                layers = crbmMultiChannel && l > 0
+                        ? layers.thenMultiChannel(K, crbmFilterEdgeLength, crbmPoolingSizes[l], seed)
+                        : layers.then(K, crbmFilterEdgeLength, crbmPoolingSizes[l], seed);
+            }
+        }
+        final CRBM[] crbms = layers.getCRBMs();
+        final int[] dataEdgeLengths = layers.getDataEdgeLengths();
+        final int[] poolingSizes = layers.getPoolingSizes();
+
+        // greedy, layer by layer on the output of the trained layers below
+        for (; stage < crbms.length; stage++) {
+            crbms[stage].setEpochListener(checkpointer(crbms, dataEdgeLengths, poolingSizes, stage, epoch));
+            crbms[stage].setSparsity(crbmSparsityTarget, crbmSparsityCost);
+            layers.train(trainingData, stage, epochs - epoch, batchSize, threads, learningRate, "CRBM-" + (stage + 1));
+            crbms[stage].setEpochListener(null);
+            epoch = 0;
+            saveCheckpoint(crbms, dataEdgeLengths, poolingSizes, null, stage + 1, epoch);
+        }
 
-        // reduce for export
-        float[][] reducedMaxPooled2 = reduceDimension(maxPooled2);
-        Main.exportAsImage(reducedMaxPooled2, "maxPooled2", 0);
-        
         // End Training
-        // Reconstructions
-
-        CRBM crbm3 = new CRBM(K, crbmFilterEdgeLength);
-//        crbm3.train(hidden1, crbm2DataEdgeLength, epochs, learningRate, "Second-RBM");
-        float[][][] hidden3 = crbm2.getHidden(hidden1, crbm2DataEdgeLength);
-
-        // EXPORT
-        Main.exportAsImage(reduceDimension(hidden3), "hidden3", 0);
-        // EXPORT END
 
-        float[][][] visible2 = crbm3.getVisible2D(hidden3, null, crbm2DataEdgeLength);
-        Main.exportAsImage(visible2, "visible2");
+        float[][] rbmData = layers.encode(trainingData, batchSize, threads, mapExporter());
 
-        float[][] visible1 = crbm1.getVisible(visible2, null, crbm2DataEdgeLength - crbmFilterEdgeLength + 1);
-
-        Main.exportAsImage(visible1, "visible1", 0);
-        
-        // Use plain old RBM        
-        float[][] rbmData = concatDataPartitions(maxPooled2);
-        
-        IRBM rbm = new RBMJBlasOpti(rbmData[0].length, 100, learningRate, new DefaultLogisticMatrixFunction(), false, 0, null);
-        rbm.train(rbmData,new StoppingCondition(2000), false, false);
+        // Use plain old RBM
+        if (rbm == null) {
+            rbm = new RBMJBlasOpti(rbmData[0].length, 100, learningRate, new DefaultLogisticMatrixFunction(), false, 0, null);
+        }
+        rbm.setMomentum(rbmMomentum);
+        rbm.setWeightDecay(rbmWeightDecay);
+        if (stage == crbms.length) {
+            while (epoch < rbmEpochs) {
+                int count = Math.min(checkpointInterval, rbmEpochs - epoch);
+                rbm.train(rbmData, new StoppingCondition(count), rbmBatchSize, false, false);
+                epoch += count;
+                saveCheckpoint(crbms, dataEdgeLengths, poolingSizes, rbm, stage, epoch);
+            }
+            saveCheckpoint(crbms, dataEdgeLengths, poolingSizes, rbm, stage + 1, 0);
+        }
         float[][] trainingDataResult = rbm.getHidden(rbmData, false);
         
         // Clustering
         DataSet[] trainingDataResultSet = Main.arrayToDataSet(trainingDataResult, trainingDataSet);
         List<Cluster> clusters = Main.generateClusters(trainingDataResultSet);
+        saveCheckpoint(crbms, dataEdgeLengths, poolingSizes, rbm, clusters);
         Main.printClusters(clusters);
         
         // Check Clusters
         DataSet[] testDataSet = Main.loadData(testDataPath);
         float[][] testData = Main.dataSetToArray(testDataSet);
-        float[][] testDataResult = getHiddenAll(testData, new CRBM[] {crbm1, crbm2}, new IRBM[]{rbm});
+        float[][] testDataResult = getHiddenAll(testData, layers, new IRBM[]{rbm});
         DataSet[] testDataResultSet = Main.arrayToDataSet(testDataResult, testDataSet);
         Main.checkClusters(clusters, testDataResultSet);
     }
-    
-    private float[][] concatDataPartitions(float[][][] data){
-        float[][] result = new float[data.length][data[0].length * data[0][0].length];
-        
-        for(int i = 0; i < data.length; ++i){
-            for(int j = 0; j < data[0].length; ++j){
-                for(int k = 0; k < data[0][0].length; ++k){
-                    result[i][j * data[0][0].length + k] = data[i][j][k];
+
+    /**
+     * Exports the hidden maps and their pooled maps of every layer as they
+     * are encoded for the RBM, as hidden1, maxPooled1, hidden2 and so on.
+     */
+    private LayerStack.MapListener mapExporter() {
+        return new LayerStack.MapListener() {
+            @Override
+            public void maps(int index, int layer, float[][] hidden, float[][] pooled) {
+                export(hidden, "hidden" + (layer + 1), index);
+                export(pooled, "maxPooled" + (layer + 1), index);
+            }
+        };
+    }
+
+    /**
+     * The maps of an image, numbered like the exports of the reduced data
+     * set.
+     */
+    private static void export(float[][] maps, String name, int index) {
+        for (int k = 0; k < maps.length; k++) {
+            Main.exportAsImage(maps[k], name, 0, index * maps.length + k);
+        }
+    }
+
+    /**
+     * Writes a checkpoint every checkpointInterval epochs of the given stage.
+     */
+    private CRBM.EpochListener checkpointer(final CRBM[] crbms, final int[] dataEdgeLengths, final int[] poolingSizes, final int stage, final int startEpoch) {
+        return new CRBM.EpochListener() {
+            @Override
+            public void epochFinished(int epoch, float error) {
+                int finished = startEpoch + epoch + 1;
+                if (finished % checkpointInterval == 0) {
+                    saveCheckpoint(crbms, dataEdgeLengths, poolingSizes, null, stage, finished);
                 }
             }
+        };
+    }
+
+    private void saveCheckpoint(CRBM[] crbms, int[] dataEdgeLengths, int[] poolingSizes, RBMJBlasOpti rbm, int stage, int epoch) {
+        save(new Checkpoint(crbms, dataEdgeLengths, poolingSizes, rbm, stage, epoch));
+    }
+
+    /**
+     * The complete stack, ready for {@link FeatureStack#load(File)}.
+     */
+    private void saveCheckpoint(CRBM[] crbms, int[] dataEdgeLengths, int[] poolingSizes, RBMJBlasOpti rbm, List<Cluster> clusters) {
+        save(new Checkpoint(crbms, dataEdgeLengths, poolingSizes, rbm, clusters, crbms.length + 1, 0));
+    }
+
+    private void save(Checkpoint checkpoint) {
+        try {
+            checkpoint.write(new File(checkpointPath));
+        } catch (IOException e) {
+            System.out.println("Could not write checkpoint: " + e.getMessage());
         }
-        
-        return result;
     }
 
     float[][][] expandDimension(float[][] data, int nextDimensionSize) {
@@ -169,85 +238,21 @@ public class Trainer {
         return result;
     }
 
-    private float[][][] maxPooling(float[][][] data, int poolingSize, int dataEdgeLength ,int filterEdgeLength) {
-        float[][][] result = new float[data.length][K][];
-
-        for(int i = 0; i < data.length; i++) {
-            result[i] = maxPooling(data[i], poolingSize, dataEdgeLength , filterEdgeLength);
-        }
-
-        return result;
-    }
-
-    private int maxPoolEdgeCalc(int poolingSize, int dataEdgeLength, int filterEdgeLength){
-
-        int offset = filterEdgeLength-1;
-        int pEdgeLength = dataEdgeLength - offset;
-
-        if(pEdgeLength % poolingSize != 0){
-            pEdgeLength = (pEdgeLength / poolingSize + 1) * poolingSize;
-
-        }
-        return pEdgeLength / poolingSize;
+    public float[][][] maxPooling(float[][][] data, int poolingSize, int dataEdgeLength ,int filterEdgeLength) {
+        return new MaxPooling(poolingSize).pool(data, dataEdgeLength - filterEdgeLength + 1, null);
     }
 
-    private float[][] maxPooling(float[][] data, int poolingSize, int dataEdgeLength ,int filterEdgeLength) {
-        int offset = filterEdgeLength-1;
-        int pEdgeLength = dataEdgeLength - offset;
-        int iEdgeLength = dataEdgeLength - offset;
-
-        float[][] workingData = new float[data.length][];
-        if(iEdgeLength % poolingSize != 0){
-            pEdgeLength = (iEdgeLength / poolingSize + 1) * poolingSize;
-            for(int i = 0; i < data.length; ++i){
-                workingData[i] = nearestNeighbour(data[i], iEdgeLength, iEdgeLength, pEdgeLength, pEdgeLength);
-            }
-        } else{
-            for(int i = 0; i < data.length; ++i){
-                workingData[i] = Arrays.copyOf(data[i], iEdgeLength * iEdgeLength);
-            }
-        }
-
-        int rEdgeLength = pEdgeLength / poolingSize;
-        float[][] result = new float[K][rEdgeLength * rEdgeLength];
-
-        for(int k = 0; k < K; k++) {
-
-            for (int y = 0; y < rEdgeLength; y++) {
-                for (int x = 0; x < rEdgeLength; x++) {
-
-                    float max = 0;
-                    for (int yh = 0; yh < poolingSize; yh++) {
-                        for (int xh = 0; xh < poolingSize; xh++) {
-
-                            int pos = (y * poolingSize + yh) * pEdgeLength + x*poolingSize + xh;
-                            float value = workingData[k][pos];
-
-                            max = Math.max(value, max);
-
-                        }
-                    }
-
-                    result[k][y * rEdgeLength + x] = max;
-                }
-            }
-        }
-
-        return result;
+    /**
+     * The maps of the hidden units of a dataEdgeLength input, see
+     * {@link MaxPooling}.
+     */
+    public float[][] maxPooling(float[][] data, int poolingSize, int dataEdgeLength ,int filterEdgeLength) {
+        return new MaxPooling(poolingSize).pool(data, dataEdgeLength - filterEdgeLength + 1);
     }
     
     
     
-    private float[][][] normalize(float[][][] data) {
-        float[][][] result = new float[data.length][][];
-        
-        for (int i = 0; i < result.length; i++) {
-            result[i] = normalize(data[i]);        
-        }
-        return result;
-    }
-    
-    private float[][] normalize(float[][] data) {
+    float[][] normalize(float[][] data) {
         float[][] result = new float[data.length][];
         
         for (int i = 0; i < result.length; i++) {
@@ -274,31 +279,11 @@ public class Trainer {
         return result;
     }
 
-    private float[][] getHiddenAll(float[][] testData, CRBM[] crbms, IRBM[] irbms) {
-        float[][][] hidden1 = normalize(crbms[0].getHidden(testData, crbm1DataEdgeLength));
-
-        float[][][] maxPooled1 = maxPooling(hidden1, crbm1PoolingSize, crbm1DataEdgeLength, crbmFilterEdgeLength);
-        int crbm2MaxPooledDataEdgeLength = maxPoolEdgeCalc(crbm1PoolingSize, crbm1DataEdgeLength, crbmFilterEdgeLength);
-        float[][][] hidden2 = crbms[1].getHidden(maxPooled1, crbm2MaxPooledDataEdgeLength);
-        float[][][] maxPooled2 = maxPooling(hidden2, crbm2PoolingSize, crbm2MaxPooledDataEdgeLength, crbmFilterEdgeLength);
-         
-        float[][] rbmData = concatDataPartitions(maxPooled2);
-        
-        float[][] hidden = copyArray2D(rbmData);
-        
+    private float[][] getHiddenAll(float[][] testData, LayerStack layers, IRBM[] irbms) {
+        float[][] hidden = layers.encode(testData, batchSize, threads);
         for (IRBM rbm : irbms) {
             hidden = rbm.getHidden(hidden, true);
         }
         return hidden;
     }
-    
-    private float[][] copyArray2D(float[][] arrays) {
-        float[][] result = new float[arrays.length][];
-        
-        for (int i = 0; i < arrays.length; i++) {
-            result[i] = Arrays.copyOf(arrays[i], arrays[i].length);
-        }
-        
-        return result;
-    }
 }
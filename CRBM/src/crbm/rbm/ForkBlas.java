@@ -7,63 +7,259 @@
 package crbm.rbm;
 
 import org.jblas.FloatMatrix;
-import org.jblas.ranges.IntervalRange;
+import org.jblas.NativeBlas;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
 /**
+ * Parallel GEMM on a work-stealing pool. The result is split in halves along
+ * its longer side until a block fits the cache and there are a few blocks
+ * per thread, so tall-skinny products are split as well. jblas copies the
+ * whole arrays on every native call, so each block packs its panels of a and
+ * b into buffers of its worker thread, at most twice as large as the panels,
+ * and multiplies those, the inner dimension in chunks that keep the panels
+ * in the L2 cache. Nothing is allocated per block.
+ *
+ * The L2 size is read from sysfs, -Dcrbm.cacheSize=bytes overrides it.
+ *
  * Created by Moritz on 1/14/14.
  */
 public class ForkBlas {
-    private final static ForkJoinPool pool = new ForkJoinPool();
+    private final static ForkJoinPool sharedPool = new ForkJoinPool();
+
+    private final static int cacheFloats = cacheSize() / 4;
+    // smallest inner dimension of a chunk
+    final static int minDepth = 256;
+    // rows and columns of a block: a and b panels and the c block fill the cache
+    final static int blockSize = blockSize(cacheFloats, minDepth);
+    // smaller blocks do not pay for the packing and the native call
+    final static int minBlockArea = 32 * 32;
+    // products below this many multiply-adds are a single native call
+    final static long minParallelWork = 1L << 20;
+    // blocks per thread, for balance when threads are stolen from
+    final static int blocksPerThread = 4;
+
+    private final static ThreadLocal<Panels> panels = new ThreadLocal<Panels>() {
+        @Override
+        protected Panels initialValue() {
+            return new Panels();
+        }
+    };
+
+    private final ForkJoinPool pool;
+
+    public ForkBlas() {
+        this(sharedPool);
+    }
+
+    /**
+     * Runs on its own pool of parallelism threads, which {@link #shutdown()}
+     * stops.
+     */
+    public ForkBlas(int parallelism) {
+        this(new ForkJoinPool(parallelism));
+    }
+
+    private ForkBlas(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Stops the threads of an instance with its own pool, the shared pool
+     * keeps running.
+     */
+    public void shutdown() {
+        if (pool != sharedPool) {
+            pool.shutdown();
+        }
+    }
 
     public void pmmuli(FloatMatrix self, FloatMatrix other, FloatMatrix result) {
-        pool.invoke(new MulitplyPartly(self, other, result, 0, self.getRows(), 0, other.getColumns()));
+        pgemm(false, false, self, other, result);
+    }
+
+    /**
+     * result = op(a) * op(b), where op transposes if the flag is set. The
+     * transposes are never materialized. Small products, and any product on a
+     * single thread, are a single native call.
+     */
+    public void pgemm(boolean transposeA, boolean transposeB, FloatMatrix a, FloatMatrix b, FloatMatrix result) {
+        final int m = result.rows;
+        final int n = result.columns;
+        final int k = transposeA ? a.rows : a.columns;
+        if (m == 0 || n == 0) {
+            return;
+        }
+
+        final int parallelism = pool.getParallelism();
+        if (parallelism == 1 || (long) m * n * k < minParallelWork) {
+            NativeBlas.sgemm(transposeA ? 'T' : 'N', transposeB ? 'T' : 'N', m, n, k,
+                    1.0f, a.data, 0, a.rows, b.data, 0, b.rows, 0.0f, result.data, 0, result.rows);
+            return;
+        }
+        final long maxArea = Math.min((long) blockSize * blockSize, Math.max(minBlockArea, (long) m * n / (blocksPerThread * parallelism)));
+        pool.invoke(new GemmPartly(transposeA, transposeB, a, b, result, 0, m, 0, n, maxArea));
     }
 
-    private final class MulitplyPartly extends RecursiveAction {
-        final static int minSize = 40;
+    private final static class GemmPartly extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final boolean transposeA;
+        final boolean transposeB;
         final FloatMatrix a;
         final FloatMatrix b;
         final FloatMatrix result;
-        final int aStart;
-        final int aEnd;
-        final int bStart;
-        final int bEnd;
+        final int rowStart;
+        final int rowEnd;
+        final int columnStart;
+        final int columnEnd;
+        final long maxArea;
 
-        public MulitplyPartly(FloatMatrix a, FloatMatrix b, FloatMatrix result, int aStart, int aEnd, int bStart, int bEnd) {
+        public GemmPartly(boolean transposeA, boolean transposeB, FloatMatrix a, FloatMatrix b, FloatMatrix result, int rowStart, int rowEnd, int columnStart, int columnEnd, long maxArea) {
+            this.transposeA = transposeA;
+            this.transposeB = transposeB;
             this.a = a;
             this.b = b;
             this.result = result;
-            this.aStart = aStart;
-            this.aEnd = aEnd;
-            this.bStart = bStart;
-            this.bEnd = bEnd;
-
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.columnStart = columnStart;
+            this.columnEnd = columnEnd;
+            this.maxArea = maxArea;
         }
 
         @Override
         protected void compute() {
+            final int rows = rowEnd - rowStart;
+            final int columns = columnEnd - columnStart;
 
-            if(aEnd - aStart > minSize && bEnd - bStart > minSize) {
-                final int aMiddle = aStart + (aEnd - aStart) / 2;
-                final int bMiddle = bStart + (bEnd - bStart) / 2;
+            final boolean split = rows > blockSize || columns > blockSize || (long) rows * columns > maxArea;
 
+            if (split && rows >= columns) {
+                final int rowMiddle = rowStart + rows / 2;
+                invokeAll(
+                        new GemmPartly(transposeA, transposeB, a, b, result, rowStart, rowMiddle, columnStart, columnEnd, maxArea),
+                        new GemmPartly(transposeA, transposeB, a, b, result, rowMiddle, rowEnd, columnStart, columnEnd, maxArea));
+            } else if (split) {
+                final int columnMiddle = columnStart + columns / 2;
                 invokeAll(
-                        new MulitplyPartly(a, b, result, aStart, aMiddle, bStart, bMiddle),
-                        new MulitplyPartly(a, b, result, aMiddle, aEnd, bMiddle, bEnd),
-                        new MulitplyPartly(a, b, result, aStart, aMiddle, bMiddle, bEnd),
-                        new MulitplyPartly(a, b, result, aMiddle, aEnd, bStart, bMiddle));
+                        new GemmPartly(transposeA, transposeB, a, b, result, rowStart, rowEnd, columnStart, columnMiddle, maxArea),
+                        new GemmPartly(transposeA, transposeB, a, b, result, rowStart, rowEnd, columnMiddle, columnEnd, maxArea));
             } else {
-                    FloatMatrix x = a.get(new IntervalRange(aStart, aEnd), new IntervalRange(0, a.columns)).mmul(
-                            b.get(new IntervalRange(0, b.rows), new IntervalRange(bStart, bEnd)));
-                    result.put(x, aStart, bStart);
+                multiply(rows, columns);
             }
+        }
+
+        private void multiply(int rows, int columns) {
+            final int k = transposeA ? a.rows : a.columns;
+            // the a and b panels of a chunk fill the cache
+            final int depth = Math.max(1, Math.min(k, Math.max(minDepth, cacheFloats / (rows + columns))));
+            final Panels p = panels.get();
+            final float[] packedA = p.a(rows * depth);
+            final float[] packedB = p.b(depth * columns);
+            final float[] packedC = p.c(rows * columns);
+
+            for (int kStart = 0; kStart < k; kStart += depth) {
+                final int kc = Math.min(depth, k - kStart);
 
+                // pack op(a)[rows, kStart ..] and op(b)[kStart .., columns] as
+                // contiguous runs, the transposes stay flags of the call
+                if (transposeA) {
+                    for (int r = 0; r < rows; r++) {
+                        System.arraycopy(a.data, kStart + (rowStart + r) * a.rows, packedA, r * kc, kc);
+                    }
+                } else {
+                    for (int i = 0; i < kc; i++) {
+                        System.arraycopy(a.data, rowStart + (kStart + i) * a.rows, packedA, i * rows, rows);
+                    }
+                }
+                if (transposeB) {
+                    for (int i = 0; i < kc; i++) {
+                        System.arraycopy(b.data, columnStart + (kStart + i) * b.rows, packedB, i * columns, columns);
+                    }
+                } else {
+                    for (int c = 0; c < columns; c++) {
+                        System.arraycopy(b.data, kStart + (columnStart + c) * b.rows, packedB, c * kc, kc);
+                    }
+                }
+
+                NativeBlas.sgemm(transposeA ? 'T' : 'N', transposeB ? 'T' : 'N', rows, columns, kc,
+                        1.0f, packedA, 0, transposeA ? kc : rows, packedB, 0, transposeB ? columns : kc,
+                        kStart == 0 ? 0.0f : 1.0f, packedC, 0, rows);
+            }
+
+            if (k == 0) {
+                Arrays.fill(packedC, 0, rows * columns, 0.0f);
+            }
+            for (int c = 0; c < columns; c++) {
+                System.arraycopy(packedC, c * rows, result.data, rowStart + (columnStart + c) * result.rows, rows);
+            }
+        }
+    }
+
+    /**
+     * Packing buffers of one thread in power of two sizes, so a native call
+     * copies at most twice the panel and blocks of any shape find a buffer
+     * without allocating once the thread has seen the size.
+     */
+    private final static class Panels {
+        final float[][] a = new float[32][];
+        final float[][] b = new float[32][];
+        final float[][] c = new float[32][];
+
+        float[] a(int size) {
+            return get(a, size);
+        }
+
+        float[] b(int size) {
+            return get(b, size);
+        }
+
+        float[] c(int size) {
+            return get(c, size);
+        }
+
+        private static float[] get(float[][] buffers, int size) {
+            final int bucket = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+            if (buffers[bucket] == null) {
+                buffers[bucket] = new float[1 << bucket];
+            }
+            return buffers[bucket];
         }
+    }
 
+    /**
+     * The largest multiple of 16 with two blockSize x depth panels and a
+     * blockSize x blockSize block in floats, at least 64.
+     */
+    static int blockSize(int floats, int depth) {
+        int size = (int) (Math.sqrt((double) depth * depth + floats) - depth);
+        return Math.max(64, size / 16 * 16);
     }
-}
 
+    private static int cacheSize() {
+        String property = System.getProperty("crbm.cacheSize");
+        if (property != null) {
+            return Integer.parseInt(property);
+        }
+        try {
+            String size = new String(Files.readAllBytes(new File("/sys/devices/system/cpu/cpu0/cache/index2/size").toPath()), StandardCharsets.US_ASCII).trim();
+            if (size.endsWith("K")) {
+                return Integer.parseInt(size.substring(0, size.length() - 1)) * 1024;
+            }
+            if (size.endsWith("M")) {
+                return Integer.parseInt(size.substring(0, size.length() - 1)) * 1024 * 1024;
+            }
+            return Integer.parseInt(size);
+        } catch (IOException | RuntimeException e) {
+            return 256 * 1024;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package crbm.rbm;
 
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
 public interface IRBM {
 
 	public void train(float[][] data, StoppingCondition stop, boolean binarizeHidden, boolean binarizeVisible);
+	// mini-batch training, data shuffled every epoch
+	public void train(float[][] data, StoppingCondition stop, int batchSize, boolean binarizeHidden, boolean binarizeVisible);
 	public float error(float[][] data, boolean binarizeHidden, boolean binarizeVisible);
 	public float[][] getHidden(float[][] data, boolean binarizeHidden);
 	public float[][] getVisible(float[][] data, boolean binarizeVisible);
+
+	// hidden probabilities, encoded in batches on the executor
+	public float[][] getHidden(float[][] data, int batchSize, ExecutorService executor);
+	public Iterator<float[]> getHidden(Iterator<float[]> data, int batchSize, ExecutorService executor);
 	
 	public float[][] getWeights();
 
@@ -1,15 +1,24 @@
 package crbm.rbm;
 
+import crbm.BatchInference;
 import crbm.ILogistic;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.jblas.FloatMatrix;
-import org.jblas.MatrixFunctions;
 
 public class RBMJBlasOpti implements IRBM {
 
     private final float learnRate;
     private final ILogistic logisticFunction;
+    private final Random random;
+
+    private float momentum = 0.0f;
+    private float weightDecay = 0.0f;
+    private int cdSteps = 1;
+    private boolean persistent = false;
 
     private float error;
 
@@ -18,10 +27,10 @@ public class RBMJBlasOpti implements IRBM {
     public RBMJBlasOpti(int inputSize, int outputSize, float learningRate, ILogistic logisticFunction, boolean useSeed, int seed, float[][] weights) {
         this.learnRate = learningRate;
         this.logisticFunction = logisticFunction;
+        this.random = useSeed ? new Random(seed) : new Random();
 
         if (weights == null) {
             if (useSeed) {
-                Random random = new Random(seed);
                 float[][] weightsTemp = new float[inputSize][outputSize];
                 for (int v = 0; v < inputSize; v++) {
                     for (int h = 0; h < outputSize; h++) {
@@ -42,120 +51,275 @@ public class RBMJBlasOpti implements IRBM {
         }        
     }  
     
+    /**
+     * A trained RBM, weights including the bias row and column.
+     */
+    public RBMJBlasOpti(float learningRate, ILogistic logisticFunction, FloatMatrix weights) {
+        this.learnRate = learningRate;
+        this.logisticFunction = logisticFunction;
+        this.random = new Random();
+        this.weights = weights;
+    }
+
+    /**
+     * Fraction of the previous weight change added to the current one.
+     * Default 0.
+     */
+    public void setMomentum(float momentum) {
+        this.momentum = momentum;
+    }
+
+    /**
+     * L2 penalty on the weights, the biases are not decayed. Default 0.
+     */
+    public void setWeightDecay(float weightDecay) {
+        this.weightDecay = weightDecay;
+    }
+
+    /**
+     * Number of Gibbs steps of the negative phase (CD-k). Default 1.
+     */
+    public void setCDSteps(int cdSteps) {
+        this.cdSteps = cdSteps;
+    }
+
+    /**
+     * Persistent CD: the negative phase continues the chains of the previous
+     * batch instead of starting at the data. Default false.
+     */
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    public float getLearningRate() {
+        return learnRate;
+    }
+
+    public FloatMatrix getWeightMatrix() {
+        return weights;
+    }
+
     @Override
     public float error(float[][] trainingData, boolean binarizeHidden, boolean binarizeVisible) {
-        FloatMatrix data = new FloatMatrix(trainingData);
+        final Buffers buffers = new Buffers(trainingData.length, this.weights);
+        buffers.load(trainingData, null, 0);
+        return (float)Math.sqrt(contrastiveDivergence(buffers, 1, false, binarizeHidden) / trainingData.length / this.weights.getRows());
+    }
+
+    /**
+     * Full-batch training.
+     */
+    @Override
+    public void train(float[][] trainingData, StoppingCondition stop, boolean binarizeHidden, boolean binarizeVisible) {
+        train(trainingData, stop, trainingData.length, binarizeHidden, binarizeVisible);
+    }
+
+    /**
+     * Trains on mini-batches of batchSize, shuffled every epoch, with the
+     * momentum, weight decay and CD steps set on this RBM. Only the matrices
+     * of one batch are allocated, once before the first epoch, and an epoch
+     * works in place on them. The error passed to stop is the reconstruction
+     * error over the epoch.
+     */
+    @Override
+    public void train(float[][] trainingData, StoppingCondition stop, int batchSize, boolean binarizeHidden, boolean binarizeVisible) {
+        final int n = trainingData.length;
+        batchSize = Math.min(batchSize, n);
+        final Buffers buffers = new Buffers(batchSize, this.weights);
+        // the last batch if batchSize does not divide the data
+        final Buffers rest = n % batchSize != 0 ? new Buffers(n % batchSize, this.weights) : null;
+        final FloatMatrix velocity = new FloatMatrix(this.weights.rows, this.weights.columns);
+
+        // a single batch is the same in every order
+        final int[] order = batchSize < n ? new int[n] : null;
+        for (int i = 0; order != null && i < n; i++) {
+            order[i] = i;
+        }
 
-        final FloatMatrix dataWithBias = FloatMatrix.concatHorizontally(FloatMatrix.ones(data.getRows(), 1), data);
-        final FloatMatrix dataWithBiasTrans = dataWithBias.transpose();
+        while(stop.isNotDone()) {
+            shuffle(order);
+
+            float sum = 0.0f;
+            for (int start = 0; start < n; start += batchSize) {
+                final Buffers batch = start + batchSize <= n ? buffers : rest;
+                batch.load(trainingData, order, start);
+                sum += contrastiveDivergence(batch, cdSteps, persistent, binarizeHidden);
+                update(batch, velocity);
+            }
+            error = (float)Math.sqrt(sum / n / this.weights.getRows());
+
+            stop.update(error);
+        }
+        System.out.println(error);
+    }
+
+    private void shuffle(int[] order) {
+        for (int i = order == null ? 0 : order.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * velocity = momentum * velocity + learnRate * (gradient - weightDecay * W)
+     * and W += velocity, in place in the associations of the batch.
+     */
+    private void update(Buffers batch, FloatMatrix velocity) {
         final FloatMatrix localWeights = this.weights;
-        final FloatMatrix hidden = new FloatMatrix(dataWithBias.rows, localWeights.columns);        
-        final FloatMatrix visible = new FloatMatrix(hidden.rows, localWeights.rows);
-        final FloatMatrix posAssociations = new FloatMatrix(dataWithBiasTrans.rows, hidden.columns);
-        final FloatMatrix negAssociations = new FloatMatrix(dataWithBiasTrans.rows, hidden.columns);
-        final FloatMatrix resetBiasHidden = FloatMatrix.ones(hidden.getRows(), 1);
-        final FloatMatrix resetBiasVisible = FloatMatrix.ones(visible.getRows(), 1);
-        final ForkBlas forkBlas = new ForkBlas();
+        final FloatMatrix gradient = batch.posAssociations.subi(batch.negAssociations).divi(batch.dataWithBias.rows);
+
+        if (weightDecay != 0.0f) {
+            // row 0 and column 0 are the biases
+            for (int c = 1; c < localWeights.columns; c++) {
+                for (int r = 1; r < localWeights.rows; r++) {
+                    final int i = r + c * localWeights.rows;
+                    gradient.data[i] -= weightDecay * localWeights.data[i];
+                }
+            }
+        }
+        gradient.muli(this.learnRate);
+
+        if (momentum != 0.0f) {
+            velocity.muli(momentum).addi(gradient);
+            localWeights.addi(velocity);
+        } else {
+            localWeights.addi(gradient);
+        }
+    }
+
+    /**
+     * One CD-k step on the batch in the buffers: leaves the associations in
+     * the buffers and returns the squared reconstruction error of the data.
+     */
+    private float contrastiveDivergence(Buffers buffers, int steps, boolean persistent, boolean binarizeHidden) {
+        final FloatMatrix dataWithBias = buffers.dataWithBias;
+        final FloatMatrix localWeights = this.weights;
+        final FloatMatrix hidden = buffers.hidden;
+        final FloatMatrix visible = buffers.visible;
+        final ForkBlas forkBlas = buffers.forkBlas;
 
         // pos_hidden_activations
-        forkBlas.pmmuli(dataWithBias, localWeights, hidden);
-        
+        forkBlas.pgemm(false, false, dataWithBias, localWeights, hidden);
+
         // pos_hidden_probs
         logisticFunction.function(hidden);
 
+        // pos_associations
+        forkBlas.pgemm(true, false, dataWithBias, hidden, buffers.posAssociations);
+
         // pos_hidden_states
-        FloatMatrix hiddenStates;
-        if (binarizeHidden) {
-        	hiddenStates = hidden.dup();
-        	hiddenStates.gti(FloatMatrix.rand(hidden.getRows(), hidden.getColumns()));
-        } else {
-        	hiddenStates = hidden;
+        FloatMatrix hiddenStates = states(hidden, buffers.hiddenStates, binarizeHidden);
+
+        // the reconstruction of the data, also the first step of CD
+        reconstruct(hiddenStates, buffers);
+        float sum = 0.0f;
+        for (int i = 0; i < visible.length; i++) {
+            final float difference = dataWithBias.data[i] - visible.data[i];
+            sum += difference * difference;
         }
 
-        // pos_associations
-        forkBlas.pmmuli(dataWithBiasTrans, hidden, posAssociations);
-       
-        // neg_visible_activations
-        forkBlas.pmmuli(hiddenStates, localWeights.transpose(), visible);
-        
-        // neg_visible_probs
-        logisticFunction.function(visible);
+        if (persistent && buffers.chainStarted) {
+            reconstruct(buffers.chain, buffers);
+        }
 
-        // Fix Bias
-        visible.putColumn(0, resetBiasVisible);
-        
-        // neg_hidden_activations
-        forkBlas.pmmuli(visible, localWeights, hidden);
+        for (int step = 0; step < steps; step++) {
+            if (step > 0) {
+                reconstruct(states(hidden, buffers.hiddenStates, binarizeHidden), buffers);
+            }
 
-        // neg_hidden_probs
-        logisticFunction.function(hidden);
+            // neg_hidden_activations
+            forkBlas.pgemm(false, false, visible, localWeights, hidden);
+
+            // neg_hidden_probs
+            logisticFunction.function(hidden);
+        }
 
         // neg_associations
-        forkBlas.pmmuli(visible.transpose(), hidden, negAssociations);
+        forkBlas.pgemm(true, false, visible, hidden, buffers.negAssociations);
 
-        return (float)Math.sqrt(MatrixFunctions.pow(dataWithBias.sub(visible), 2.0f).sum() / trainingData.length / localWeights.getRows());
+        if (persistent) {
+            buffers.chain.copy(states(hidden, buffers.hiddenStates, binarizeHidden));
+            buffers.chainStarted = true;
+        }
+        return sum;
     }
 
-    @Override
-    public void train(float[][] trainingData, StoppingCondition stop, boolean binarizeHidden, boolean binarizeVisible) {
-        FloatMatrix data = new FloatMatrix(trainingData);
-        
-        final FloatMatrix dataWithBias = FloatMatrix.concatHorizontally(FloatMatrix.ones(data.getRows(), 1), data);
-        
-        final FloatMatrix dataWithBiasTrans = dataWithBias.transpose();
-        final FloatMatrix localWeights = this.weights;
-        final FloatMatrix hidden = new FloatMatrix(dataWithBias.rows, localWeights.columns);
-        FloatMatrix hiddenStates = new FloatMatrix(dataWithBias.rows, localWeights.columns);
-        final FloatMatrix visible = new FloatMatrix(hidden.rows, localWeights.rows);
-        final FloatMatrix posAssociations = new FloatMatrix(dataWithBiasTrans.rows, hidden.columns);
-        final FloatMatrix negAssociations = new FloatMatrix(dataWithBiasTrans.rows, hidden.columns);
-        final FloatMatrix resetBiasHidden = FloatMatrix.ones(hidden.getRows(), 1);
-        final FloatMatrix resetBiasVisible = FloatMatrix.ones(visible.getRows(), 1);
-        final ForkBlas forkBlas = new ForkBlas();
-        while(stop.isNotDone()) {
+    /**
+     * Samples the hidden probabilities into states if binarizeHidden, else
+     * returns the probabilities.
+     */
+    private FloatMatrix states(FloatMatrix hidden, FloatMatrix states, boolean binarizeHidden) {
+        if (!binarizeHidden) {
+            return hidden;
+        }
+        for (int i = 0; i < hidden.length; i++) {
+            states.data[i] = hidden.data[i] > org.jblas.util.Random.nextFloat() ? 1.0f : 0.0f;
+        }
+        return states;
+    }
 
-            // pos_hidden_activations
-            forkBlas.pmmuli(dataWithBias, localWeights, hidden);
-            
-            // pos_hidden_probs
-            logisticFunction.function(hidden);
+    /**
+     * The visible probabilities of hiddenStates into the visible buffer.
+     */
+    private void reconstruct(FloatMatrix hiddenStates, Buffers buffers) {
+        final FloatMatrix visible = buffers.visible;
 
-            // pos_hidden_states
-            if (binarizeHidden) {
-            	hiddenStates = hidden.dup();
-            	hiddenStates.gti(FloatMatrix.rand(hidden.getRows(), hidden.getColumns()));
-            } else {
-            	hiddenStates = hidden;
-            }
+        // neg_visible_activations
+        buffers.forkBlas.pgemm(false, true, hiddenStates, this.weights, visible);
 
-            // pos_associations
-            forkBlas.pmmuli(dataWithBiasTrans, hidden, posAssociations);
-           
-            // neg_visible_activations
-            forkBlas.pmmuli(hiddenStates, localWeights.transpose(), visible);
-            
-            // neg_visible_probs
-            logisticFunction.function(visible);
-
-            // Fix Bias
-            visible.putColumn(0, resetBiasVisible);
-            
-            // neg_hidden_activations
-            forkBlas.pmmuli(visible, localWeights, hidden);
+        // neg_visible_probs
+        logisticFunction.function(visible);
 
-            // neg_hidden_probs
-            logisticFunction.function(hidden);
+        // Fix Bias
+        for (int i = 0; i < visible.rows; i++) {
+            visible.data[i] = 1.0f;
+        }
+    }
 
-            // neg_associations
-            forkBlas.pmmuli(visible.transpose(), hidden, negAssociations);
+    /**
+     * The matrices of a training step for batches of a fixed size, allocated
+     * once per call of train.
+     */
+    private static final class Buffers {
+        final FloatMatrix dataWithBias;
+        final FloatMatrix hidden;
+        final FloatMatrix hiddenStates;
+        final FloatMatrix visible;
+        final FloatMatrix posAssociations;
+        final FloatMatrix negAssociations;
+        final ForkBlas forkBlas = new ForkBlas();
 
-            // Update weights
-            localWeights.addi((posAssociations.sub(negAssociations)).div(data.getRows()).mul(this.learnRate));
-            error = (float)Math.sqrt(MatrixFunctions.pow(dataWithBias.sub(visible), 2.0f).sum() / trainingData.length / localWeights.getRows());
+        // hidden states of the persistent chains
+        final FloatMatrix chain;
+        boolean chainStarted;
+
+        Buffers(int rows, FloatMatrix weights) {
+            dataWithBias = new FloatMatrix(rows, weights.rows);
+            hidden = new FloatMatrix(rows, weights.columns);
+            hiddenStates = new FloatMatrix(rows, weights.columns);
+            visible = new FloatMatrix(rows, weights.rows);
+            posAssociations = new FloatMatrix(weights.rows, weights.columns);
+            negAssociations = new FloatMatrix(weights.rows, weights.columns);
+            chain = new FloatMatrix(rows, weights.columns);
+        }
 
-            stop.update(error);
+        /**
+         * Copies the rows order[start ..] of data, or data[start ..] if order
+         * is null, into dataWithBias.
+         */
+        void load(float[][] data, int[] order, int start) {
+            final int rows = dataWithBias.rows;
+            // Insert bias units of 1 into the first column of data.
+            for (int i = 0; i < rows; i++) {
+                final float[] row = data[order != null ? order[start + i] : start + i];
+                dataWithBias.data[i] = 1.0f;
+                for (int j = 0; j < row.length; j++) {
+                    dataWithBias.data[i + (j + 1) * rows] = row[j];
+                }
+            }
         }
-        System.out.println(error);
     }
 
     @Override
@@ -192,6 +356,25 @@ public class RBMJBlasOpti implements IRBM {
         return hiddenNodesWithoutBias.toArray2();
     }
 
+    @Override
+    public float[][] getHidden(float[][] data, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, new float[data.length][], batchSize, executor, encoder());
+    }
+
+    @Override
+    public Iterator<float[]> getHidden(Iterator<float[]> data, int batchSize, ExecutorService executor) {
+        return BatchInference.encode(data, batchSize, executor, encoder());
+    }
+
+    private BatchInference.Encoder<float[], float[]> encoder() {
+        return new BatchInference.Encoder<float[], float[]>() {
+            @Override
+            public float[][] encode(List<float[]> batch) {
+                return getHidden(batch.toArray(new float[batch.size()][]), false);
+            }
+        };
+    }
+
     @Override
     public float[][] getVisible(float[][] data, boolean binarizeVisible) {
 
@@ -0,0 +1,76 @@
+package crbm;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.jblas.FloatMatrix;
+
+/**
+ * SIMD version of {@link FastLogisticMatrixFunction} on the widest vectors
+ * of the machine, same error bound. Uses the incubating vector API, so it
+ * is kept out of src and needs --add-modules jdk.incubator.vector to
+ * compile and run.
+ */
+public class VectorLogisticMatrixFunction implements ILogistic {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private static final FloatVector ONE = FloatVector.broadcast(SPECIES, 1f);
+
+    private final FastLogisticMatrixFunction tail = new FastLogisticMatrixFunction();
+
+    @Override
+    public FloatMatrix function(FloatMatrix m) {
+        function(m.data, 0, m.length);
+        return m;
+    }
+
+    @Override
+    public void function(float[] data, int offset, int length) {
+        int end = offset + SPECIES.loopBound(length);
+
+        for (int i = offset; i < end; i += SPECIES.length()) {
+            logistic(FloatVector.fromArray(SPECIES, data, i)).intoArray(data, i);
+        }
+        tail.function(data, end, offset + length - end);
+    }
+
+    @Override
+    public float function(float[] data, int offset, int length, float bias) {
+        int end = offset + SPECIES.loopBound(length);
+
+        FloatVector sum = FloatVector.zero(SPECIES);
+        for (int i = offset; i < end; i += SPECIES.length()) {
+            FloatVector y = logistic(FloatVector.fromArray(SPECIES, data, i).add(bias));
+            y.intoArray(data, i);
+            sum = sum.add(y);
+        }
+        return sum.reduceLanes(VectorOperators.ADD) + tail.function(data, end, offset + length - end, bias);
+    }
+
+    private static FloatVector logistic(FloatVector v) {
+        FloatVector x = v.neg()
+                .max(FastLogisticMatrixFunction.MIN)
+                .min(FastLogisticMatrixFunction.MAX);
+
+        FloatVector n = x.mul(FastLogisticMatrixFunction.LOG2E)
+                .add(FastLogisticMatrixFunction.ROUND)
+                .sub(FastLogisticMatrixFunction.ROUND);
+        FloatVector r = x.sub(n.mul(FastLogisticMatrixFunction.LN2_HI)).sub(n.mul(FastLogisticMatrixFunction.LN2_LO));
+
+        FloatVector p = r.mul(1f / 720).add(1f / 120)
+                .mul(r).add(1f / 24)
+                .mul(r).add(1f / 6)
+                .mul(r).add(1f / 2)
+                .mul(r).add(1f)
+                .mul(r).add(1f);
+
+        FloatVector scale = ((IntVector) n.convert(VectorOperators.F2I, 0))
+                .add(127)
+                .lanewise(VectorOperators.LSHL, 23)
+                .reinterpretAsFloats();
+
+        return ONE.div(p.mul(scale).add(1f));
+    }
+}